@@ -18,9 +18,13 @@ import java.io.IOException;
  */
 public class MultipartInputStream extends FilterInputStream  {
 
-	int bytesLeft = 0;
+	long bytesLeft = 0;
 
     public MultipartInputStream(InputStream in, int contentLength) {
+		this(in, (long)contentLength);
+    }
+
+    public MultipartInputStream(InputStream in, long contentLength) {
 		super(in);
 		bytesLeft = contentLength;
     }
@@ -44,7 +48,7 @@ public class MultipartInputStream extends FilterInputStream  {
 	public int read() throws IOException {
 		if (bytesLeft > 0) {
 			int b = super.read();
-			bytesLeft--;
+			if (b != -1) bytesLeft--;
 			return b;
 		}
 		else return -1;
@@ -60,13 +64,7 @@ public class MultipartInputStream extends FilterInputStream  {
 	 * @exception  IOException  if an I/O error occurs.
 	 */
 	public int read(byte[] b) throws IOException {
-		if (bytesLeft > 0) {
-			int n = Math.min( bytesLeft, b.length );
-			n = read( b, 0, n );
-			bytesLeft -= n;
-			return n;
-		}
-		else return -1;
+		return read( b, 0, b.length );
 	}
 
 	/**
@@ -79,10 +77,10 @@ public class MultipartInputStream extends FilterInputStream  {
 	 */
 	public int read(byte[] b, int off, int len) throws IOException {
 		if (bytesLeft > 0) {
-			int n = Math.min( bytesLeft, b.length - off );
+			int n = (int)Math.min( bytesLeft, b.length - off );
 			n = Math.min( n, len );
 			n = super.read( b, off, n );
-			bytesLeft -= n;
+			if (n > 0) bytesLeft -= n;
 			return n;
 		}
 		else return -1;
@@ -98,8 +96,9 @@ public class MultipartInputStream extends FilterInputStream  {
 	 */
 	public long skip(long n) throws IOException {
 		if (bytesLeft > 0) {
-			n = Math.min( (long)bytesLeft, n );
+			n = Math.min( bytesLeft, n );
 			n = super.skip(n);
+			if (n > 0) bytesLeft -= n;
 			return n;
 		}
 		else return -1;
@@ -7,9 +7,16 @@
 
 package org.rsna.server;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import org.apache.log4j.Logger;
 import org.rsna.util.Base64;
 import org.rsna.util.FileUtil;
@@ -21,18 +28,29 @@ public class Authenticator {
 
 	static final Logger logger = Logger.getLogger(Authenticator.class);
 
-	static Authenticator authenticator = null;
+	static volatile Authenticator authenticator = null;
+
+	static final long maxSweepInterval = 60 * 1000; //longest time between sweeps for timed-out sessions
 
+	/**
+	 * The sessions table, retained for subclasses. It is a view
+	 * of the concurrent table which this class uses, so changes
+	 * made through either are visible in both.
+	 */
 	protected Hashtable<String,Session> sessions = null;
-	long timeout = 1 * 60 * 60 * 1000; //default session timeout in ms = 1 hour
-	String sessionCookieName = "RSNASESSION";
+	private final ConcurrentHashMap<String,Session> sessionTable = new ConcurrentHashMap<String,Session>();
+	volatile long timeout = 1 * 60 * 60 * 1000; //default session timeout in ms = 1 hour
+	volatile int maxSessions = 100000;
+	volatile String sessionCookieName = "RSNASESSION";
+	Sweeper sweeper = null;
+	final CredentialCache credentialCache = new CredentialCache();
 
 	/**
 	 * The protected constructor to prevent instantiation of
 	 * the class except through the getInstance() method.
 	 */
 	protected Authenticator() {
-		sessions = new Hashtable<String,Session>();
+		sessions = new SessionView(sessionTable);
 	}
 
 	/**
@@ -40,9 +58,15 @@ public class Authenticator {
 	 * @return the current instance of the Authenticator, or a new instance
 	 * if no current instance exists.
 	 */
-	public static synchronized Authenticator getInstance() {
-		if (authenticator == null) authenticator = new Authenticator();
-		return authenticator;
+	public static Authenticator getInstance() {
+		Authenticator auth = authenticator;
+		if (auth == null) {
+			synchronized (Authenticator.class) {
+				if (authenticator == null) authenticator = new Authenticator();
+				auth = authenticator;
+			}
+		}
+		return auth;
 	}
 
 	/**
@@ -65,16 +89,45 @@ public class Authenticator {
 	 * Get the Session timeout.
 	 * @return the current timeout
 	 */
-	public synchronized long getSessionTimeout() {
+	public long getSessionTimeout() {
 		return timeout;
 	}
 
 	/**
-	 * Get the number of active sessions.
+	 * Set the maximum number of sessions. When a new session would
+	 * exceed the limit, the least recently used sessions are closed.
+	 * @param maxSessions the maximum number of sessions (default 100000).
+	 */
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = Math.max(maxSessions, 1);
+		if (sessionTable.size() > this.maxSessions) evictSessions();
+	}
+
+	/**
+	 * Get the maximum number of sessions.
+	 * @return the maximum number of sessions.
+	 */
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * Get the number of active sessions. Sessions which have timed out
+	 * are counted until the next sweep removes them.
 	 * @return the number of sessions in the sessions table
 	 */
-	public synchronized int getActiveSessionCount() {
-		return sessions.size();
+	public int getActiveSessionCount() {
+		return sessionTable.size();
+	}
+
+	/**
+	 * Get the cache of verified credentials from Authorization and
+	 * RSNA headers. Code which changes a user's password or roles
+	 * must invalidate the user's entries in the cache.
+	 * @return the credential cache.
+	 */
+	public CredentialCache getCredentialCache() {
+		return credentialCache;
 	}
 
 	/**
@@ -92,7 +145,7 @@ public class Authenticator {
 			String id = req.getCookie(ssoCookieName);
 			logger.debug("Authenticating "+id);
 			if (id != null) {
-				if ( ((session=sessions.get(id)) != null) && session.appliesTo(req) ) {
+				if ( ((session=sessionTable.get(id)) != null) && session.appliesTo(req) ) {
 					logger.debug("...existing session matched");
 					session.recordAccess();
 					return session.user;
@@ -106,7 +159,7 @@ public class Authenticator {
 							//Note: we don't use the id created by the session
 							//because the SSO system has already set the cookie,
 							//so we index on that.
-							sessions.put(id, session);
+							addSession(id, session);
 							logger.debug("...created session for "+session.user.getUsername());
 							session.recordAccess();
 							return session.user;
@@ -122,7 +175,7 @@ public class Authenticator {
 
 		//No joy, try the session cookie
 		String id = req.getCookie(sessionCookieName);
-		if ( (id != null) && ((session=sessions.get(id)) != null) && session.appliesTo(req) ) {
+		if ( (id != null) && ((session=sessionTable.get(id)) != null) && session.appliesTo(req) ) {
 			session.recordAccess();
 			return session.user;
 		}
@@ -160,10 +213,10 @@ public class Authenticator {
 		String[] up = credentials.split(":");
 		User user = null;
 		if (up.length == 2) {
-			user = users.authenticate(up[0], up[1]);
+			user = credentialCache.authenticate(users, up[0], up[1]);
 		}
 		else if (up.length == 1) {
-			user = users.authenticate(up[0], "");
+			user = credentialCache.authenticate(users, up[0], "");
 		}
 		return user;
 	}
@@ -176,7 +229,7 @@ public class Authenticator {
 	 */
     public String getUsernameForSession(String id) {
 		if (id != null) {
-			Session session = sessions.get(id);
+			Session session = sessionTable.get(id);
 			if (session != null) return session.user.getUsername();
 		}
 		return null;
@@ -194,7 +247,7 @@ public class Authenticator {
     public boolean createSession(User user, HttpRequest req, HttpResponse res) {
 		try {
 			Session session = new Session(user, req.getRemoteAddress());
-			sessions.put(session.id, session);
+			addSession(session.id, session);
 			if (!Users.getInstance().supportsSSO()) {
 				res.setHeader("Set-Cookie", sessionCookieName+"="+session.id + "; path=/");
 				res.setHeader("Cache-Control", "no-cache=\"set-cookie\"");
@@ -226,7 +279,7 @@ public class Authenticator {
 		String id = req.getCookie(name);
 		if (id != null) {
 			//A session was specified. Remove it from the hashtable.
-			sessions.remove(id);
+			sessionTable.remove(id);
 			if (!users.supportsSSO()) {
 				//Set a dummy session cookie that expires immediately.
 				res.setHeader("Set-Cookie", sessionCookieName+"=NONE; Max-Age=0");
@@ -235,26 +288,117 @@ public class Authenticator {
 		}
 	}
 	
+	//Add a session to the table, starting the sweeper if necessary
+	//and evicting the least recently used sessions if the table is full.
+	private void addSession(String id, Session session) {
+		sessionTable.put(id, session);
+		startSweeper();
+		if (sessionTable.size() > maxSessions) evictSessions();
+	}
+
+	//Remove the least recently used sessions, leaving room for new
+	//sessions so the table does not have to be scanned on every insertion.
+	private synchronized void evictSessions() {
+		removeInactiveSessions();
+		int excess = sessionTable.size() - maxSessions;
+		if (excess <= 0) return;
+		excess += maxSessions / 16;
+
+		//Find the last access time of the newest session to be evicted.
+		//The times are copied because they change while the sessions are in use.
+		ArrayList<Map.Entry<String,Session>> entries = new ArrayList<Map.Entry<String,Session>>(sessionTable.entrySet());
+		long[] times = new long[entries.size()];
+		for (int i=0; i<times.length; i++) times[i] = entries.get(i).getValue().lastAccess;
+		Arrays.sort(times);
+		long cutoff = times[Math.min(excess, times.length) - 1];
+
+		int evicted = 0;
+		for (Map.Entry<String,Session> entry : entries) {
+			if (evicted >= excess) break;
+			if ((entry.getValue().lastAccess <= cutoff) && sessionTable.remove(entry.getKey(), entry.getValue())) evicted++;
+		}
+		logger.debug("Evicted "+evicted+" sessions");
+	}
+
+	//Start the thread which removes timed-out sessions.
+	private synchronized void startSweeper() {
+		if (sweeper == null) {
+			sweeper = new Sweeper();
+			sweeper.start();
+		}
+	}
+
 	/**
 	 * Remove all sessions that have timed out.
+	 * This method is called periodically by a background thread.
 	 */
 	public void removeInactiveSessions() {
-		for (String id : sessions.keySet().toArray(new String[sessions.size()])) {
-			Session session = sessions.get(id);
-			if (session.hasTimedOut()) sessions.remove(id);
+		for (Map.Entry<String,Session> entry : sessionTable.entrySet()) {
+			if (entry.getValue().hasTimedOut()) sessionTable.remove(entry.getKey(), entry.getValue());
 		}
 	}
-	
+
 	/**
 	 * GetActiveUsers.
-	 * @return the array of active Sessions (after removing inactive Sessions from the sessions table).
+	 * @return the array of active Sessions, sorted in order of last access.
 	 */
 	public Session[] getActiveSessions() {
-		removeInactiveSessions();
-		Session[] s = new Session[sessions.size()];
-		s = sessions.values().toArray(s);
+		LinkedList<Session> list = new LinkedList<Session>();
+		for (Session session : sessionTable.values()) {
+			if (!session.hasTimedOut()) list.add(session);
+		}
+		Session[] s = list.toArray(new Session[list.size()]);
 		Arrays.sort(s);
 		return s;
 	}
 
+	//A Hashtable which passes its operations through to the concurrent
+	//sessions table, so subclasses compiled against the Hashtable field
+	//continue to work. It does not lock the table.
+	static class SessionView extends Hashtable<String,Session> {
+		static final long serialVersionUID = 1L;
+		final transient ConcurrentHashMap<String,Session> table;
+
+		SessionView(ConcurrentHashMap<String,Session> table) {
+			this.table = table;
+		}
+		public int size() { return table.size(); }
+		public boolean isEmpty() { return table.isEmpty(); }
+		public Session get(Object key) { return table.get(key); }
+		public boolean containsKey(Object key) { return table.containsKey(key); }
+		public boolean containsValue(Object value) { return table.containsValue(value); }
+		public boolean contains(Object value) { return table.containsValue(value); }
+		public Session put(String key, Session value) { return table.put(key, value); }
+		public Session remove(Object key) { return table.remove(key); }
+		public void clear() { table.clear(); }
+		public Set<String> keySet() { return table.keySet(); }
+		public Collection<Session> values() { return table.values(); }
+		public Set<Map.Entry<String,Session>> entrySet() { return table.entrySet(); }
+		public Enumeration<String> keys() { return table.keys(); }
+		public Enumeration<Session> elements() { return table.elements(); }
+		public Session getOrDefault(Object key, Session value) { return table.getOrDefault(key, value); }
+		public Session putIfAbsent(String key, Session value) { return table.putIfAbsent(key, value); }
+		public boolean remove(Object key, Object value) { return table.remove(key, value); }
+		public void putAll(Map<? extends String,? extends Session> map) { table.putAll(map); }
+		public void forEach(BiConsumer<? super String,? super Session> action) { table.forEach(action); }
+		public int hashCode() { return table.hashCode(); }
+		public String toString() { return table.toString(); }
+	}
+
+	//The thread which periodically removes timed-out sessions.
+	class Sweeper extends Thread {
+		public Sweeper() {
+			super("Authenticator session sweeper");
+			setDaemon(true);
+		}
+		public void run() {
+			while (true) {
+				long interval = Math.min(Math.max(timeout / 4, 1000), maxSweepInterval);
+				try { Thread.sleep(interval); }
+				catch (InterruptedException quit) { return; }
+				if (timeout > 0) removeInactiveSessions();
+			}
+		}
+	}
+
 }
@@ -0,0 +1,44 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.server;
+
+/**
+ * A class to encapsulate one range of bytes requested in a Range header.
+ */
+public class ByteRange {
+
+	public final long first;
+	public final long last;
+
+	/**
+	 * Construct a ByteRange.
+	 * @param first the offset of the first byte in the range.
+	 * @param last the offset of the last byte in the range (inclusive).
+	 */
+	public ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	/**
+	 * Get the number of bytes in the range.
+	 * @return the length of the range.
+	 */
+	public long getLength() {
+		return last - first + 1;
+	}
+
+	/**
+	 * Get the value of the Content-Range header for this range.
+	 * @param totalLength the length of the complete entity.
+	 * @return the Content-Range value, e.g. "bytes 0-499/1234".
+	 */
+	public String getContentRange(long totalLength) {
+		return "bytes " + first + "-" + last + "/" + totalLength;
+	}
+}
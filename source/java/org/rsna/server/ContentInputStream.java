@@ -0,0 +1,93 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.server;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+/**
+ * A FilterInputStream that limits the bytes read to the content
+ * length of a request, so the next request on a persistent
+ * connection is not consumed as part of the current one.
+ * Closing this stream does not close the underlying connection.
+ */
+public class ContentInputStream extends FilterInputStream {
+
+	long bytesLeft;
+
+	/**
+	 * Construct a ContentInputStream.
+	 * @param in the connection stream.
+	 * @param contentLength the number of bytes in the content.
+	 */
+	public ContentInputStream(InputStream in, long contentLength) {
+		super(in);
+		bytesLeft = Math.max(contentLength, 0);
+	}
+
+	/**
+	 * Get the number of content bytes that have not yet been read.
+	 * @return the number of unread content bytes.
+	 */
+	public long getBytesLeft() {
+		return bytesLeft;
+	}
+
+	public int read() throws IOException {
+		if (bytesLeft <= 0) return -1;
+		int b = in.read();
+		if (b != -1) bytesLeft--;
+		else bytesLeft = 0;
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (bytesLeft <= 0) return -1;
+		int n = in.read(b, off, (int)Math.min(bytesLeft, len));
+		if (n != -1) bytesLeft -= n;
+		else bytesLeft = 0;
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		if (bytesLeft <= 0) return 0;
+		n = in.skip(Math.min(bytesLeft, n));
+		bytesLeft -= n;
+		return n;
+	}
+
+	public int available() throws IOException {
+		return (int)Math.min(bytesLeft, in.available());
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Read and discard the unread content, provided that
+	 * it does not exceed a limit.
+	 * @param limit the maximum number of bytes to discard.
+	 * @return true if all the content has been consumed; false otherwise.
+	 */
+	public boolean discard(long limit) {
+		if (bytesLeft > limit) return false;
+		try {
+			byte[] buffer = new byte[4096];
+			while (read(buffer, 0, buffer.length) != -1) ;
+			return true;
+		}
+		catch (IOException ex) { return false; }
+	}
+
+	/**
+	 * Leave the connection open.
+	 */
+	public void close() { }
+}
@@ -0,0 +1,167 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.server;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.rsna.util.Base64;
+
+/**
+ * A bounded cache of the results of verifying credentials supplied in
+ * request headers, so that clients which send credentials on every request
+ * do not require a call to the Users implementation (e.g., an LDAP bind)
+ * for each one. Entries are keyed by a salted SHA-256 hash of the username
+ * and password; the plaintext password is never stored. Failed verifications
+ * are also cached, for a shorter time. Entries must be invalidated when
+ * users are changed.
+ */
+public class CredentialCache {
+
+	static final Logger logger = Logger.getLogger(CredentialCache.class);
+
+	final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+	final AtomicLong generation = new AtomicLong();
+	final byte[] salt = new byte[16];
+	volatile int maxEntries = 10000;
+	volatile long ttl = 5 * 60 * 1000; //time to keep a successful verification, in ms
+	volatile long negativeTTL = 30 * 1000; //time to keep a failed verification, in ms
+
+	/**
+	 * Construct an empty CredentialCache with a random salt.
+	 */
+	public CredentialCache() {
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/**
+	 * Set the limits of the cache. A ttl of zero disables caching
+	 * of successful verifications; a negativeTTL of zero disables
+	 * caching of failures.
+	 * @param maxEntries the maximum number of entries (default 10000).
+	 * @param ttl the time in milliseconds to keep a successful verification (default 5 minutes).
+	 * @param negativeTTL the time in milliseconds to keep a failed verification (default 30 seconds).
+	 */
+	public void setLimits(int maxEntries, long ttl, long negativeTTL) {
+		this.maxEntries = Math.max(maxEntries, 1);
+		this.ttl = Math.max(ttl, 0);
+		this.negativeTTL = Math.max(negativeTTL, 0);
+		entries.clear();
+	}
+
+	/**
+	 * Authenticate a set of credentials, using the cached result if there
+	 * is one and calling the Users implementation if there is not.
+	 * @param users the Users implementation.
+	 * @param username the plaintext username.
+	 * @param password the plaintext password.
+	 * @return the authenticated user, or null if the credentials do not match a user.
+	 */
+	public User authenticate(Users users, String username, String password) {
+		if ((ttl == 0) && (negativeTTL == 0)) return users.authenticate(username, password);
+		String key = getKey(username, password);
+		if (key == null) return users.authenticate(username, password);
+
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			if (entry.expires > now) return entry.user;
+			entries.remove(key, entry);
+		}
+
+		//Verify the credentials, and cache the result unless
+		//the cache was invalidated while verifying them.
+		long gen = generation.get();
+		User user = users.authenticate(username, password);
+		long time = (user != null) ? ttl : negativeTTL;
+		if (time > 0) {
+			entries.put(key, new Entry(username, user, System.currentTimeMillis() + time));
+			if (generation.get() != gen) invalidate(username);
+			else if (entries.size() > maxEntries) evict();
+		}
+		return user;
+	}
+
+	/**
+	 * Remove all entries for a user. This method must be called
+	 * when a user's password or roles are changed.
+	 * @param username the username.
+	 */
+	public void invalidate(String username) {
+		generation.incrementAndGet();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().username.equals(username)) it.remove();
+		}
+	}
+
+	/**
+	 * Remove all entries. This method must be called when
+	 * the users are reloaded or changed in bulk.
+	 */
+	public void clear() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+
+	/**
+	 * Get the number of entries in the cache.
+	 * @return the number of entries, including expired entries
+	 * which have not yet been removed.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	//Remove the expired entries and, if the cache is still full,
+	//enough other entries to leave room for new ones.
+	private synchronized void evict() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires <= now) it.remove();
+		}
+		int target = maxEntries - maxEntries / 16;
+		it = entries.values().iterator();
+		while ((entries.size() > target) && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	//Make the key for a set of credentials.
+	private String getKey(String username, String password) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(salt);
+			md.update(username.getBytes("UTF-8"));
+			md.update((byte)0);
+			md.update(password.getBytes("UTF-8"));
+			return Base64.encodeToString(md.digest());
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to hash the credentials", ex);
+			return null;
+		}
+	}
+
+	static class Entry {
+		final String username;
+		final User user;
+		final long expires;
+
+		Entry(String username, User user, long expires) {
+			this.username = username;
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+}
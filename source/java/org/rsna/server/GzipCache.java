@@ -0,0 +1,143 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.server;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.apache.log4j.Logger;
+import org.rsna.util.BufferPool;
+import org.rsna.util.FileUtil;
+
+/**
+ * A bounded in-memory cache of gzip-compressed file contents, so that
+ * static files are compressed once rather than on every request.
+ * Entries are keyed by the file path and are discarded when the file's
+ * last modified time or length changes. When the total size of the
+ * compressed entries exceeds the limit, the least recently used
+ * entries are evicted.
+ */
+public class GzipCache {
+
+	static final Logger logger = Logger.getLogger(GzipCache.class);
+
+	static long maxCacheSize = 32 * 1024 * 1024; //total bytes of compressed content
+	static long maxFileSize = 1024 * 1024; //largest file to compress into the cache
+	static long cacheSize = 0;
+	static long hits = 0;
+	static long misses = 0;
+
+	static final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+
+	/**
+	 * Set the limits of the cache.
+	 * @param maxCacheSize the maximum total number of bytes of compressed content to keep.
+	 * @param maxFileSize the length of the largest file that will be compressed into the cache.
+	 */
+	public static synchronized void setLimits(long maxCacheSize, long maxFileSize) {
+		GzipCache.maxCacheSize = Math.max(maxCacheSize, 0);
+		GzipCache.maxFileSize = Math.max(maxFileSize, 0);
+		evict();
+	}
+
+	/**
+	 * Get the gzip-compressed contents of a file, compressing the
+	 * file and caching the result if it is not already in the cache.
+	 * @param file the file.
+	 * @return the compressed contents, or null if the file is too large
+	 * to be cached or cannot be read.
+	 */
+	public static byte[] get(File file) {
+		long length = file.length();
+		long lastModified = file.lastModified();
+		if ((length > maxFileSize) || (lastModified == 0)) return null;
+		String key = file.getAbsolutePath();
+		synchronized (GzipCache.class) {
+			Entry entry = entries.get(key);
+			if ((entry != null) && (entry.lastModified == lastModified) && (entry.length == length)) {
+				hits++;
+				return entry.bytes;
+			}
+			misses++;
+		}
+		//Compress outside the lock so other requests are not blocked.
+		byte[] bytes = compress(file);
+		if (bytes == null) return null;
+		synchronized (GzipCache.class) {
+			Entry old = entries.put(key, new Entry(lastModified, length, bytes));
+			if (old != null) cacheSize -= old.bytes.length;
+			cacheSize += bytes.length;
+			evict();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Remove all entries from the cache.
+	 */
+	public static synchronized void clear() {
+		entries.clear();
+		cacheSize = 0;
+	}
+
+	/**
+	 * Get a summary of the state of the cache.
+	 * @return a string containing the number of entries, their total size, and the hit and miss counts.
+	 */
+	public static synchronized String getStatus() {
+		return entries.size() + " entries, " + cacheSize + " bytes, " + hits + " hits, " + misses + " misses";
+	}
+
+	//Remove the least recently used entries until the cache is within its limit.
+	private static void evict() {
+		Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+		while ((cacheSize > maxCacheSize) && it.hasNext()) {
+			cacheSize -= it.next().getValue().bytes.length;
+			it.remove();
+		}
+	}
+
+	private static byte[] compress(File file) {
+		FileInputStream in = null;
+		byte[] buffer = BufferPool.getBuffer();
+		try {
+			in = new FileInputStream(file);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream((int)file.length() / 3 + 64);
+			GZIPOutputStream gz = new GZIPOutputStream(baos) {
+				{ def.setLevel(Deflater.BEST_COMPRESSION); }
+			};
+			int n;
+			while ((n = in.read(buffer)) != -1) gz.write(buffer, 0, n);
+			gz.close();
+			return baos.toByteArray();
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to compress "+file, ex);
+			return null;
+		}
+		finally {
+			FileUtil.close(in);
+			BufferPool.releaseBuffer(buffer);
+		}
+	}
+
+	static class Entry {
+		final long lastModified;
+		final long length;
+		final byte[] bytes;
+
+		Entry(long lastModified, long length, byte[] bytes) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.bytes = bytes;
+		}
+	}
+}
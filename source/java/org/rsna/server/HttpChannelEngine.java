@@ -0,0 +1,274 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * A selector-based connection engine for the HttpServer. Connections are
+ * accepted and their request heads are read without blocking; a connection
+ * is passed to an HttpHandler on the server's thread pool only when a
+ * complete request head has arrived. Idle persistent connections are
+ * returned to the selector between requests, so they do not occupy
+ * pool threads.
+ */
+class HttpChannelEngine {
+
+	static final Logger logger = Logger.getLogger(HttpChannelEngine.class);
+
+	static final int initialHeadSize = 4096;
+	static final int maxHeadSize = 64 * 1024;
+	static final int headTimeout = 60000; //ms allowed for a request head to arrive
+	static final long sweepInterval = 1000;
+
+	final HttpServer server;
+	final ServerSocketChannel serverChannel;
+	final Selector selector;
+	final ConcurrentLinkedQueue<Connection> resumed;
+	final AtomicInteger connectionCount = new AtomicInteger();
+
+	/**
+	 * Construct an HttpChannelEngine and bind its server channel.
+	 * @param server the HttpServer for which connections are to be handled.
+	 * @param port the port on which to listen for connections.
+	 * @throws IOException if the channel cannot be opened.
+	 */
+	HttpChannelEngine(HttpServer server, int port) throws IOException {
+		this.server = server;
+		resumed = new ConcurrentLinkedQueue<Connection>();
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Get the ServerSocket of the engine's server channel.
+	 * @return the ServerSocket.
+	 */
+	ServerSocket getServerSocket() {
+		return serverChannel.socket();
+	}
+
+	/**
+	 * Get the number of connections that are open, whether idle or active.
+	 * @return the number of open connections.
+	 */
+	int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/**
+	 * Run the selector loop in the calling thread until it is interrupted.
+	 */
+	void run() {
+		long lastSweep = System.currentTimeMillis();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				selector.select(sweepInterval);
+				registerResumedConnections();
+				LinkedList<Connection> ready = new LinkedList<Connection>();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) accept();
+					else if (key.isReadable()) {
+						Connection conn = (Connection)key.attachment();
+						if (conn.read()) {
+							key.cancel();
+							ready.add(conn);
+						}
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= sweepInterval) {
+					closeIdleConnections(now);
+					lastSweep = now;
+				}
+				if (ready.size() > 0) {
+					//Flush the cancelled keys so the channels can be put in blocking mode.
+					selector.selectNow();
+					for (Connection conn : ready) dispatch(conn);
+				}
+			}
+			catch (Exception ex) {
+				if (!selector.isOpen()) break;
+				logger.warn("Exception in the connection selector", ex);
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Return a connection to the selector to wait for its next request.
+	 * This method is called by an HttpHandler after a response has been
+	 * sent on a persistent connection.
+	 * @param socket the socket of the connection.
+	 * @param requestCount the number of requests served on the connection.
+	 */
+	void resume(Socket socket, int requestCount) {
+		resumed.add(new Connection(socket.getChannel(), requestCount));
+		selector.wakeup();
+	}
+
+	//Note that a connection handled by an HttpHandler has been closed.
+	void closed() {
+		connectionCount.decrementAndGet();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			connectionCount.incrementAndGet();
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, new Connection(channel, 0));
+		}
+	}
+
+	private void registerResumedConnections() {
+		Connection conn;
+		while ((conn = resumed.poll()) != null) {
+			try {
+				conn.channel.configureBlocking(false);
+				conn.channel.register(selector, SelectionKey.OP_READ, conn);
+			}
+			catch (Exception ex) { conn.close(); }
+		}
+	}
+
+	//Hand a connection with a complete request head to the thread pool.
+	private void dispatch(Connection conn) {
+		try {
+			conn.channel.configureBlocking(true);
+			Socket socket = conn.channel.socket();
+			InputStream in = new BufferedInputStream(
+								new SequenceInputStream(
+									new ByteArrayInputStream(conn.head.array(), 0, conn.head.position()),
+									socket.getInputStream()));
+			HttpHandler handler = new HttpHandler(socket, server.getServletSelector(), server, this, in, conn.requestCount);
+			if (!server.execute(handler)) closed();
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to dispatch a connection", ex);
+			conn.close();
+		}
+	}
+
+	//Close connections whose heads have not arrived in time.
+	private void closeIdleConnections(long now) {
+		int keepAliveTimeout = server.getKeepAliveTimeout();
+		for (SelectionKey key : selector.keys()) {
+			Object att = key.attachment();
+			if (key.isValid() && (att instanceof Connection)) {
+				Connection conn = (Connection)att;
+				int timeout = ((conn.requestCount > 0) && (conn.head.position() == 0)) ? keepAliveTimeout : headTimeout;
+				if (now - conn.lastActivity > timeout) {
+					key.cancel();
+					conn.close();
+				}
+			}
+		}
+	}
+
+	private void close() {
+		for (SelectionKey key : selector.keys()) {
+			Object att = key.attachment();
+			if (att instanceof Connection) ((Connection)att).close();
+		}
+		try { selector.close(); }
+		catch (Exception ignore) { logger.warn("Unable to close the selector."); }
+		try { serverChannel.close(); }
+		catch (Exception ignore) { logger.warn("Unable to close the server channel."); }
+	}
+
+	//A connection waiting in the selector for a complete request head.
+	class Connection {
+
+		final SocketChannel channel;
+		final int requestCount;
+		ByteBuffer head;
+		int scanned = 0;
+		int lineLength = 0;
+		long lastActivity;
+		boolean closed = false;
+
+		Connection(SocketChannel channel, int requestCount) {
+			this.channel = channel;
+			this.requestCount = requestCount;
+			head = ByteBuffer.allocate(initialHeadSize);
+			lastActivity = System.currentTimeMillis();
+		}
+
+		//Read the available bytes, returning true if the head is complete.
+		boolean read() {
+			try {
+				if (!head.hasRemaining()) {
+					if (head.capacity() >= maxHeadSize) {
+						logger.debug("Request head too large from "+channel.socket().getInetAddress());
+						close();
+						return false;
+					}
+					ByteBuffer larger = ByteBuffer.allocate(Math.min(2 * head.capacity(), maxHeadSize));
+					head.flip();
+					larger.put(head);
+					head = larger;
+				}
+				int n = channel.read(head);
+				if (n == -1) {
+					close();
+					return false;
+				}
+				lastActivity = System.currentTimeMillis();
+				return isHeadComplete();
+			}
+			catch (Exception ex) {
+				close();
+				return false;
+			}
+		}
+
+		//Scan the new bytes for the empty line which ends the head.
+		private boolean isHeadComplete() {
+			byte[] bytes = head.array();
+			int end = head.position();
+			while (scanned < end) {
+				byte b = bytes[scanned++];
+				if (b == '\n') {
+					if (lineLength == 0) return true;
+					lineLength = 0;
+				}
+				else if (b != '\r') lineLength++;
+			}
+			return false;
+		}
+
+		void close() {
+			if (closed) return;
+			closed = true;
+			try { channel.close(); }
+			catch (Exception ignore) { }
+			connectionCount.decrementAndGet();
+		}
+	}
+}
@@ -13,6 +13,7 @@ import java.io.*;
 import java.net.Socket;
 import org.apache.log4j.Logger;
 import org.rsna.servlets.Servlet;
+import org.rsna.util.FileUtil;
 
 /**
  * The thread that handles an individual HTTP connection.
@@ -26,6 +27,13 @@ public class HttpHandler extends Thread {
 	ServletSelector selector;
 	HttpResponse res = null;
 	HttpRequest req = null;
+	HttpChannelEngine engine = null;
+	InputStream in = null;
+	int requestCount = 0;
+
+	//The largest amount of unread request content that will be
+	//skipped to reuse a connection; larger requests close it.
+	static final long maxDiscardedContent = 64 * 1024;
 
 	/**
 	 * Construct an HttpHandler.
@@ -40,19 +48,86 @@ public class HttpHandler extends Thread {
 		this.server = server;
 	}
 
+	/**
+	 * Construct an HttpHandler for a connection supplied by an HttpChannelEngine.
+	 * @param socket the socket of the connection.
+	 * @param selector the class that decodes request paths into servlet calls
+	 * @param server the HttpServer to pass to HttpRequest
+	 * @param engine the engine to which the connection is returned between requests
+	 * @param in the connection stream, starting with the request head already received
+	 * @param requestCount the number of requests already served on the connection
+	 */
+	HttpHandler(Socket socket, ServletSelector selector, HttpServer server,
+				HttpChannelEngine engine, InputStream in, int requestCount) {
+		this(socket, selector, server);
+		this.engine = engine;
+		this.in = in;
+		this.requestCount = requestCount;
+	}
+
 	/**
 	 * Handle the connection in a separate Thread, getting the streams,
-	 * selecting a Servlet to handle the request, and returning the response.
+	 * selecting a Servlet to handle each request, and returning the responses.
+	 * The connection is kept open for subsequent requests as long as the
+	 * client and the response allow it, up to the server's limits on the
+	 * idle time and the number of requests per connection.
 	 */
 	public void run() {
+		try {
+			if (in == null) in = new BufferedInputStream(socket.getInputStream());
+			boolean keepAlive = true;
+			while (keepAlive) {
+				if (requestCount > 0) {
+					if ((engine != null) && (in.available() == 0)) {
+						//Nothing is pending; let the engine wait for the next request.
+						engine.resume(socket, requestCount);
+						return;
+					}
+					if (!waitForRequest(in)) break;
+				}
+				requestCount++;
+				keepAlive = handle(in, (server.getKeepAliveTimeout() > 0)
+										&& (requestCount < server.getMaxKeepAliveRequests()));
+			}
+		}
+		catch (Exception ex) { logger.error("Internal server error (req==null)",ex); }
+
+		//Close everything.
+		if (req != null) req.close();
+		else FileUtil.close(in);
+		if (res != null) res.close();
+		try { socket.close(); }
+		catch (Exception ex) { logger.info("Unable to close the socket."); }
+		if (engine != null) engine.closed();
+	}
+
+	//Wait for the next request on a persistent connection.
+	//Return false if the client closes the connection or the
+	//keep-alive timeout expires before the request arrives.
+	private boolean waitForRequest(InputStream in) {
+		try {
+			socket.setSoTimeout(server.getKeepAliveTimeout());
+			in.mark(1);
+			if (in.read() == -1) return false;
+			in.reset();
+			return true;
+		}
+		catch (Exception closeConnection) { return false; }
+	}
 
+	//Handle one request on the connection, returning true
+	//if the connection can be used for another request.
+	private boolean handle(InputStream in, boolean allowKeepAlive) {
+		req = null;
+		res = null;
 		try {
 			//Make a response
 			res = new HttpResponse(socket);
 
 			//Get the request
-			req = new HttpRequest(socket, server);
-			
+			req = new HttpRequest(socket, server, in);
+			res.setKeepAlive(allowKeepAlive && req.isKeepAlive());
+
 			//Get the Servlet
 			Servlet servlet = selector.getServlet(req);
 
@@ -80,6 +155,7 @@ public class HttpHandler extends Thread {
 				res.send();
 				logger.debug("Unallowed method in request ("+req.method+") received from "+req.getRemoteAddress());
 			}
+			return res.isPersistent() && req.discardContent(maxDiscardedContent);
 		}
 		catch (Exception ex) {
 			if (req != null) {
@@ -99,10 +175,6 @@ public class HttpHandler extends Thread {
 			}
 			else { logger.error("Internal server error (req==null)",ex); }
 		}
-		//Close everything.
-		if (req != null) req.close();
-		if (res != null) res.close();
-		try { socket.close(); }
-		catch (Exception ex) { logger.info("Unable to close the socket."); }
+		return false;
 	}
 }
@@ -27,6 +27,7 @@ import java.util.Locale;
 import java.util.TimeZone;
 import org.apache.log4j.Logger;
 import org.rsna.util.AttackLog;
+import org.rsna.util.BufferPool;
 import org.rsna.util.FileUtil;
 import org.rsna.util.IPUtil;
 import org.rsna.multipart.*;
@@ -41,10 +42,31 @@ public class HttpRequest {
 	protected static SimpleDateFormat dateFormat = null;
 
 	final int soTimeout = 60000;
+	static final int maxHeadLength = 64 * 1024; //request line plus headers
+	static final int maxHeaderLines = 256;
+	static final int maxArrayLength = Integer.MAX_VALUE - 8; //largest content buffered in memory
+
+	//Common names, returned instead of allocating a new String for each request
+	static final String[] methods = {
+		"GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS"
+	};
+	static final String[] protocolNames = { "HTTP" };
+	static final String[] protocolVersions = { "1.1", "1.0" };
+	static final String[] headerNames = {
+		"host", "connection", "user-agent", "accept", "accept-encoding",
+		"accept-language", "accept-charset", "cookie", "referer", "origin",
+		"content-type", "content-length", "transfer-encoding", "authorization",
+		"if-modified-since", "if-none-match", "if-range", "range",
+		"cache-control", "pragma", "keep-alive", "upgrade", "expect", "dnt",
+		"upgrade-insecure-requests", "x-forwarded-for", "x-requested-with",
+		"sec-fetch-site", "sec-fetch-mode", "sec-fetch-dest", "sec-fetch-user"
+	};
 
 	public final Socket socket;
 	public final HttpServer server;
 	public final InputStream inputStream;
+	final InputStream connectionStream;
+	boolean persistent = false;
 	public String protocolName = "";
 	public String protocolVersion = "";
 	public String protocol = "[]";
@@ -54,6 +76,8 @@ public class HttpRequest {
 	public String query = "";
 	public String content = "";
 	public Path parsedPath;
+	String context = "";
+	int subPathStart = 0;
 	public User user;
 
 	public Hashtable<String,String> headers = new Hashtable<String,String>();
@@ -61,6 +85,15 @@ public class HttpRequest {
 	public Hashtable<String,String> params = new Hashtable<String,String>();
 	public Hashtable<String,List<String>> paramLists = new Hashtable<String,List<String>>();
 
+	//The cookies and parameters are decoded in the constructor when the
+	//request has a Cookie header, a query string, or form content, so
+	//the public tables are filled as they always were. The flags make
+	//the decoding happen only once.
+	String cookieText = null;
+	boolean cookiesParsed = false;
+	String parameterText = null;
+	boolean parametersParsed = false;
+
 	/**
 	 * Construct an HttpRequest, connect it to an InputStream, and
 	 * read the request from the stream.
@@ -79,19 +112,38 @@ public class HttpRequest {
 	 * @throws Exception if the request cannot be parsed for any reason
 	 */
 	public HttpRequest(Socket socket, HttpServer server) throws Exception {
+		this(socket, server, new BufferedInputStream(socket.getInputStream()));
+	}
+
+	/**
+	 * Construct an HttpRequest on a persistent connection, reading
+	 * the request from a stream which is shared by all the requests
+	 * received on the connection. If the request has a delimited
+	 * body, the InputStream supplied by this request is limited to
+	 * the content, leaving the connection positioned at the start
+	 * of the next request.
+	 * @param socket the socket on which to construct the request.
+	 * @param server the HttpServer which received the request.
+	 * @param connectionStream the buffered stream for the connection.
+	 * @throws Exception if the request cannot be parsed for any reason
+	 */
+	public HttpRequest(Socket socket, HttpServer server, InputStream connectionStream) throws Exception {
 		this.socket = socket;
 		this.server = server;
+		this.connectionStream = connectionStream;
 		if (server != null) ssl = server.getSSL() ? "s" : "";
 		socket.setSoTimeout(soTimeout);
-		inputStream = new BufferedInputStream(socket.getInputStream());
-		parseRequestLine();
-		getHeaders();
+		parseHead();
+		persistent = allowsPersistentConnection();
+		if (persistent) inputStream = new ContentInputStream(connectionStream, getContentLengthLong());
+		else inputStream = connectionStream;
 		if ( (method.equals("POST") || method.equals("PUT"))
 				&& getContentType().toLowerCase().contains("application/x-www-form-urlencoded") ) {
 			content = getContentText();
-			getQueryParameters(content);
+			parameterText = content;
 		}
-		else getQueryParameters(query);
+		if (cookieText != null) parseCookies();
+		if ((parameterText != null) || !query.equals("")) parseParameters();
 		this.user = Authenticator.getInstance().authenticate(this);
 	}
 
@@ -101,6 +153,7 @@ public class HttpRequest {
 	 * @param value the parameter value.
 	 */
 	public void addParameter(String name, String value) {
+		parseParameters();
 		if (params.get(name) == null) {
 			params.put(name,value);
 		}
@@ -134,6 +187,48 @@ public class HttpRequest {
 	 */
 	public void close() {
 		FileUtil.close(inputStream);
+		FileUtil.close(connectionStream);
+	}
+
+	/**
+	 * Determine whether the connection on which this request was received
+	 * can be used for another request. This is true if the client did not
+	 * ask for the connection to be closed and the end of the request content
+	 * can be determined from the headers.
+	 * @return true if the connection can be kept open after the response.
+	 */
+	public boolean isKeepAlive() {
+		return persistent;
+	}
+
+	/**
+	 * Read and discard any content of this request which has not
+	 * been consumed by the servlet, positioning the connection at the
+	 * start of the next request.
+	 * @param limit the maximum number of bytes to discard.
+	 * @return true if the connection is positioned at the start of the
+	 * next request; false if the connection must be closed.
+	 */
+	public boolean discardContent(long limit) {
+		if (!persistent) return false;
+		return ((ContentInputStream)inputStream).discard(limit);
+	}
+
+	//Determine whether the client will accept a persistent connection
+	//and whether the request is delimited so the next one can be found.
+	private boolean allowsPersistentConnection() {
+		if (method.equals("")) return false;
+		String connection = getHeader("connection", "").toLowerCase();
+		if (connection.contains("close")) return false;
+		if (protocolVersion.equals("1.0")) {
+			if (!connection.contains("keep-alive")) return false;
+		}
+		else if (!protocolVersion.equals("1.1")) return false;
+		if (getHeader("transfer-encoding") != null) return false;
+		if (method.equals("POST") || method.equals("PUT")) {
+			return (getContentLengthLong() >= 0);
+		}
+		return true;
 	}
 
 	/**
@@ -351,6 +446,33 @@ public class HttpRequest {
 		return parsedPath;
 	}
 
+	/**
+	 * Get the context of the servlet selected to process this request.
+	 * @return the context with which the servlet was installed in the
+	 * ServletSelector (for example, "service" or "service/v2"), or the
+	 * empty string if the request was routed to the default servlet.
+	 */
+	public String getContext() {
+		return context;
+	}
+
+	/**
+	 * Get the part of the path which follows the context of
+	 * the servlet selected to process this request.
+	 * @return the sub-path, always with a leading slash.
+	 */
+	public String getSubPath() {
+		if (subPathStart >= path.length()) return "/";
+		return path.substring(subPathStart);
+	}
+
+	//Record the servlet context selected by the ServletSelector and the
+	//index in the path at which the sub-path starts.
+	void setRoute(String context, int subPathStart) {
+		this.context = context;
+		this.subPathStart = subPathStart;
+	}
+
 	/**
 	 * Get a header value.
 	 * @param name the case-insensitive name of the header.
@@ -384,6 +506,77 @@ public class HttpRequest {
 	public long getConditionalTime() {
 		String time = headers.get( "if-modified-since" );
 		if (time == null) return 0;
+		return parseHttpDate(time);
+	}
+
+	/**
+	 * Get the byte ranges specified in the Range header.
+	 * Ranges which start beyond the end of the content are omitted.
+	 * Suffix ranges (e.g. "bytes=-500") and open-ended ranges
+	 * (e.g. "bytes=9500-") are converted to absolute ranges.
+	 * @param length the length of the content to which the ranges apply.
+	 * @return the list of ranges, an empty list if none of the ranges
+	 * can be satisfied, or null if the Range header is missing or
+	 * cannot be parsed, in which case it must be ignored.
+	 */
+	public List<ByteRange> getRanges(long length) {
+		String range = headers.get( "range" );
+		if (range == null) return null;
+		range = range.trim();
+		if (!range.toLowerCase().startsWith("bytes=")) return null;
+		List<ByteRange> ranges = new LinkedList<ByteRange>();
+		for (String spec : range.substring(6).split(",")) {
+			spec = spec.trim();
+			int k = spec.indexOf("-");
+			if (k < 0) return null;
+			String first = spec.substring(0, k).trim();
+			String last = spec.substring(k+1).trim();
+			try {
+				if (first.equals("")) {
+					//Suffix range: the last n bytes
+					if (last.equals("")) return null;
+					long n = Long.parseLong(last);
+					if (n < 0) return null;
+					if ((n > 0) && (length > 0)) {
+						ranges.add( new ByteRange(Math.max(length - n, 0), length - 1) );
+					}
+				}
+				else {
+					long a = Long.parseLong(first);
+					long b = last.equals("") ? length - 1 : Long.parseLong(last);
+					if ((a < 0) || ((b < a) && !last.equals(""))) return null;
+					if (a < length) ranges.add( new ByteRange(a, Math.min(b, length - 1)) );
+				}
+			}
+			catch (NumberFormatException ex) { return null; }
+		}
+		return ranges;
+	}
+
+	/**
+	 * Determine whether a Range header applies to the current
+	 * version of an entity, as determined by the If-Range header.
+	 * An entity tag in the If-Range header must match the ETag exactly
+	 * (weak tags never match); a date must match the last modified time
+	 * to the second.
+	 * @param etag the current ETag of the entity, including the quotes.
+	 * @param lastModified the last modified time of the entity in milliseconds.
+	 * @return true if the If-Range header is missing or matches the entity;
+	 * false otherwise.
+	 */
+	public boolean ifRangeMatches(String etag, long lastModified) {
+		String ifRange = headers.get( "if-range" );
+		if (ifRange == null) return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"")) return ifRange.equals(etag);
+		if (ifRange.startsWith("W/")) return false;
+		long time = parseHttpDate(ifRange);
+		return (time != 0) && ((time / 1000) == (lastModified / 1000));
+	}
+
+	//Parse a date in the format used in HTTP headers,
+	//returning 0 if the date cannot be parsed.
+	private static synchronized long parseHttpDate(String time) {
 		if (dateFormat == null) {
 			dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
 			dateFormat.setTimeZone( TimeZone.getTimeZone("GMT") );
@@ -403,6 +596,7 @@ public class HttpRequest {
 	 */
 	public String getCookie(String name) {
 		if (name != null) {
+			parseCookies();
 			return cookies.get(name.toLowerCase());
 		}
 		else return null;
@@ -421,16 +615,26 @@ public class HttpRequest {
 
 	/**
 	 * Get the int value of the Content-Length header.
-	 * @return the Content-Length value, or -1 if it is missing or fails to parse.
+	 * @return the Content-Length value, or -1 if it is missing, negative,
+	 * fails to parse, or is too large for an int.
 	 */
 	public int getContentLength() {
-		int length = -1;
+		long length = getContentLengthLong();
+		return (length <= Integer.MAX_VALUE) ? (int)length : -1;
+	}
+
+	/**
+	 * Get the long value of the Content-Length header.
+	 * @return the Content-Length value, or -1 if it is missing, negative, or fails to parse.
+	 */
+	public long getContentLengthLong() {
+		long length = -1;
 		String lengthString = headers.get("content-length");
 		if (lengthString != null) {
-			try { length = Integer.parseInt(lengthString); }
+			try { length = Long.parseLong(lengthString.trim()); }
 			catch (Exception didNotParse) { length = -1; }
 		}
-		return length;
+		return (length >= 0) ? length : -1;
 	}
 
 	/**
@@ -457,6 +661,7 @@ public class HttpRequest {
 	 * @return the names of the parameters in the params hashtable.
 	 */
 	public String[] getParameterNames() {
+		parseParameters();
 		return params.keySet().toArray(new String[0]);
 	}
 
@@ -467,6 +672,7 @@ public class HttpRequest {
 	 * false otherwise.
 	 */
 	public boolean hasParameter(String name) {
+		parseParameters();
 		return (params.get(name) != null);
 	}
 
@@ -479,6 +685,7 @@ public class HttpRequest {
 	 * the parameter does not exist in the query string.
 	 */
 	public String getParameter(String name) {
+		parseParameters();
 		return params.get(name);
 	}
 
@@ -493,6 +700,7 @@ public class HttpRequest {
 	 * @param defaultValue the value to return if the parameter is missing.
 	 */
 	public String getParameter(String name, String defaultValue) {
+		parseParameters();
 		String param = params.get(name);
 		return (param != null) ? param : defaultValue;
 	}
@@ -505,6 +713,7 @@ public class HttpRequest {
 	 * or null if the parameter does not exist in the query string.
 	 */
 	public List<String> getParameterValues(String name) {
+		parseParameters();
 		return paramLists.get(name);
 	}
 
@@ -518,6 +727,19 @@ public class HttpRequest {
 	 * the input stream.
 	 */
 	public LinkedList<UploadedFile> getParts(File dir, int maxPostSize) throws IOException {
+		return getParts(dir, (long)maxPostSize);
+	}
+
+	/**
+	 * Parse the incoming multipart, storing files in the dir provided
+	 * and updating the parameters.
+	 * @param dir the directory in which to store the files.
+	 * @param maxPostSize the maximum size POST to accept.
+	 * @return the list of uploaded files.
+	 * @throws IOException if the parts cannot be be read from
+	 * the input stream.
+	 */
+	public LinkedList<UploadedFile> getParts(File dir, long maxPostSize) throws IOException {
 		LinkedList<UploadedFile> files = new LinkedList<UploadedFile>();
 
 		// Check the content type to make sure it's "multipart/form-data"
@@ -527,7 +749,7 @@ public class HttpRequest {
 			|| (typeLC.contains("multipart/related") && typeLC.contains("application/dicom"))) {
 
 			// Check the content length
-			int length = getContentLength();
+			long length = getContentLengthLong();
 			if ((length == -1) || (length > maxPostSize)) {
 				logger.warn("Attempt to parse multipart form with unacceptable length ("+length+" / "+maxPostSize+")");
 				return files; //return an empty set of parts
@@ -566,47 +788,167 @@ public class HttpRequest {
 		return files;
 	}
 
-	//Get the method and path from the first line of the request.
-	private void parseRequestLine() {
+	/**
+	 * Stream the content of the request to a file without buffering it in
+	 * memory. This method is intended for large uploads (e.g., PUT or POST of
+	 * a study or a video) which may exceed 2GB. If the request has no
+	 * Content-Length, the content is read until the end of the stream.
+	 * If the content cannot be read completely, the file is deleted.
+	 * @param file the file in which to store the content.
+	 * @param maxSize the maximum number of bytes to accept.
+	 * @return the number of bytes stored, or -1 if the content was
+	 * too long or could not be read completely.
+	 */
+	public long saveContent(File file, long maxSize) {
+		long length = getContentLengthLong();
+		if (length > maxSize) {
+			logger.warn("Attempt to save content with unacceptable length ("+length+" / "+maxSize+")");
+			return -1;
+		}
+		//With no Content-Length, read one byte more than the limit
+		//so an over-long stream can be detected.
+		long limit = (length >= 0) ? length : ((maxSize < Long.MAX_VALUE) ? maxSize + 1 : maxSize);
+		boolean ok = false;
+		try { ok = FileUtil.copy(inputStream, new FileOutputStream(file), limit); }
+		catch (Exception ex) { logger.warn("Unable to create "+file, ex); }
+		long saved = file.length();
+		if (!ok || ((length >= 0) && (saved != length)) || (saved > maxSize)) {
+			logger.warn("Incomplete or over-long content ("+saved+" / "+length+" bytes) for "+file);
+			file.delete();
+			return -1;
+		}
+		return saved;
+	}
+
+	//Read the request line and the headers into a pooled buffer and parse
+	//them in place, positioning the stream to the beginning of the data.
+	private void parseHead() {
 		query = "";
 		path = "";
 		method = "";
-		parsedPath = new Path("");
 
-		String line = getLine();
-		logger.debug(line);
+		byte[] buffer = BufferPool.getBuffer();
+		try {
+			int length = readHead(buffer);
+			if (length <= 0) return;
+			int lineEnd = endOfLine(buffer, 0, length);
+			parseRequestLine(buffer, 0, lineEnd);
+			int lineStart = lineEnd + 1;
+			while (lineStart < length) {
+				lineEnd = endOfLine(buffer, lineStart, length);
+				parseHeader(buffer, lineStart, lineEnd);
+				lineStart = lineEnd + 1;
+			}
+		}
+		finally {
+			BufferPool.releaseBuffer(buffer);
+			parsedPath = new Path(path);
+		}
+	}
+
+	//Read the request head into a buffer, one byte at a time so the stream
+	//is left at the start of the content, stopping at the empty line which
+	//terminates the headers. Leading empty lines are ignored. Lines in the
+	//buffer are terminated by \n. Return the number of bytes in the head,
+	//or -1 if it could not be read or exceeded the limits.
+	private int readHead(byte[] buffer) {
+		int limit = Math.min(buffer.length, maxHeadLength);
+		int length = 0;
+		int lineStart = 0;
+		int lines = 0;
+		int b;
+		try {
+			while ((b = connectionStream.read()) != -1) {
+				if (b == '\n') {
+					int lineLength = length - lineStart;
+					if ((lineLength > 0) && (buffer[length-1] == '\r')) lineLength--;
+					if (lineLength == 0) {
+						if (lineStart != 0) return lineStart;
+						length = 0;
+						continue;
+					}
+					if ((length == limit) || (++lines > maxHeaderLines)) {
+						throw new IOException("Request head too large");
+					}
+					buffer[length++] = '\n';
+					lineStart = length;
+				}
+				else {
+					if (length == limit) throw new IOException("Request head too large");
+					buffer[length++] = (byte)b;
+				}
+			}
+			return length;
+		}
+		catch (Exception ex) {
+			String ip = getRemoteAddress();
+			AttackLog.getInstance().addAttack(ip);
+			logger.debug(ex.getClass().getName() + ": " + ip);
+			if (length > 0) logger.debug("...Request:\n"+new String(buffer, 0, Math.min(length, 256), FileUtil.utf8));
+		}
+		return -1;
+	}
+
+	//Get the method and path from the first line of the request.
+	private void parseRequestLine(byte[] buffer, int start, int end) {
+		start = skipWhitespace(buffer, start, end);
+		end = trimWhitespace(buffer, start, end);
+		logger.debug(new String(buffer, start, end - start, FileUtil.utf8));
 
 		//get the method
-		line = line.trim();
-		int methodEnd = line.indexOf(" ");
+		int methodEnd = indexOf(buffer, start, end, ' ');
 		if (methodEnd < 0) return;
-		method = line.substring(0, methodEnd).toUpperCase();
+		method = getName(buffer, start, methodEnd, methods, true);
 
-		//get the path and the query string
-		int protocolStart = line.indexOf(" HTTP");
-		if (protocolStart < 0) return;
-		path = line.substring(methodEnd, protocolStart).trim();
-		int queryStringStart = path.indexOf("?");
-		if (queryStringStart >= 0) {
-			query = path.substring(queryStringStart + 1); //skip the '?'
-			path = path.substring(0, queryStringStart).trim();
-		}
-		int protocolVersionStart = line.indexOf("/", protocolStart);
+		//get the protocol, which follows the last space
+		int protocolStart = lastIndexOf(buffer, methodEnd, end, ' ');
+		if ((protocolStart <= methodEnd) || !startsWith(buffer, protocolStart + 1, end, "HTTP")) return;
+		int protocolVersionStart = indexOf(buffer, protocolStart + 1, end, '/');
 		if (protocolVersionStart > 0) {
-			protocolName = line.substring(protocolStart, protocolVersionStart);
-			protocolVersion = line.substring(protocolVersionStart + 1).trim();
+			protocolName = getName(buffer, protocolStart + 1, protocolVersionStart, protocolNames, true);
+			protocolVersion = getName(buffer, protocolVersionStart + 1, end, protocolVersions, false);
 		}
 		else {
-			protocolName = line.substring(protocolStart);
+			protocolName = getName(buffer, protocolStart + 1, end, protocolNames, true);
 			protocolVersion = "";
 		}
-		protocolName = protocolName.trim().toUpperCase(); //note: trim is necessary
-		protocol = (protocolName + ssl).toLowerCase();
+		if (protocolName.equals("HTTP")) protocol = ssl.equals("") ? "http" : "https";
+		else protocol = (protocolName + ssl).toLowerCase();
+
+		//get the path and the query string
+		int pathStart = skipWhitespace(buffer, methodEnd, protocolStart);
+		int pathEnd = protocolStart;
+		int queryStringStart = indexOf(buffer, pathStart, pathEnd, '?');
+		if (queryStringStart >= 0) {
+			query = new String(buffer, queryStringStart + 1, pathEnd - queryStringStart - 1, FileUtil.utf8);
+			pathEnd = queryStringStart;
+		}
+		pathEnd = trimWhitespace(buffer, pathStart, pathEnd);
+		path = new String(buffer, pathStart, pathEnd - pathStart, FileUtil.utf8);
 
-		try { path = URLDecoder.decode(path,"UTF-8"); }
-		catch (Exception ex) { logger.warn("Undecodable path: \""+path+"\""); }
-		path = filterPath(path);
-		parsedPath = new Path(path);
+		if ((path.indexOf('%') >= 0) || (path.indexOf('+') >= 0)) {
+			try { path = URLDecoder.decode(path,"UTF-8"); }
+			catch (Exception ex) { logger.warn("Undecodable path: \""+path+"\""); }
+		}
+		if (!isFilteredPath(path)) path = filterPath(path);
+	}
+
+	//Determine whether a path is already in the form produced by
+	//filterPath, so the common case can skip splitting it.
+	private static boolean isFilteredPath(String p) {
+		int n = p.length();
+		if ((n == 0) || (p.charAt(0) != '/')) return false;
+		if (n == 1) return true;
+		if (p.charAt(n-1) == '/') return false;
+		for (int i=0; i<n; i++) {
+			char c = p.charAt(i);
+			if (c == '/') {
+				char next = p.charAt(i+1);
+				if ((next == '/') || (next == '.') || (next <= ' ')) return false;
+			}
+			else if ((c <= ' ') && ((i == n-1) || (p.charAt(i+1) == '/'))) return false;
+		}
+		return true;
 	}
 
 	//Make sure that a path cannot reference anything above its root
@@ -631,73 +973,133 @@ public class HttpRequest {
 		return sb.toString();
 	}
 
-	//Parse the headers, creating the headers and cookies Hashtables.
-	//positioning the stream to the beginning of the data.
-	private Hashtable<String,String> getHeaders() {
-		String line;
-		while (!((line=getLine()).equals(""))) {
-			int k = line.indexOf(":");
-			if (k != -1) {
-				String headerName = line.substring(0,k).trim().toLowerCase();
-				String value = line.substring(k+1).trim();
-				headers.put(headerName, value);
-				if (headerName.equals("cookie")) addCookies(value);
-			}
+	//Parse one header line, adding it to the headers Hashtable.
+	//Lines without a colon are ignored.
+	private void parseHeader(byte[] buffer, int start, int end) {
+		int k = indexOf(buffer, start, end, ':');
+		if (k == -1) return;
+		int nameStart = skipWhitespace(buffer, start, k);
+		int nameEnd = trimWhitespace(buffer, nameStart, k);
+		int valueStart = skipWhitespace(buffer, k+1, end);
+		int valueEnd = trimWhitespace(buffer, valueStart, end);
+		String headerName = getName(buffer, nameStart, nameEnd, headerNames, false);
+		String value = new String(buffer, valueStart, valueEnd - valueStart, FileUtil.utf8);
+		headers.put(headerName, value);
+		if (headerName.equals("cookie")) {
+			cookieText = (cookieText == null) ? value : cookieText + ";" + value;
 		}
-		return headers;
 	}
 
-	//Get one header line from the stream,
-	//using \r\n as the delimiter.
-	private String getLine() {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		int b = 'x';
-		try {
-			while ( (b != '\n') && ((b=inputStream.read()) != -1) ) baos.write(b);
-			byte[] bytes = baos.toByteArray();
-			try { return ( new String(bytes, "UTF-8") ).trim(); }
-			catch (Exception useDefault) { return ( new String(bytes) ).trim(); }
+	//Get a name from a region of the buffer, returning the matching
+	//String from the table of common names if there is one, so the
+	//common names are not allocated on every request. Names which are
+	//not in the table are converted to upper or lower case.
+	private static String getName(byte[] buffer, int start, int end, String[] names, boolean upperCase) {
+		int length = end - start;
+		for (String name : names) {
+			if ((name.length() == length) && regionMatches(buffer, start, name)) return name;
 		}
-		catch (Exception ex) {
-			String ip = getRemoteAddress();
-			AttackLog.getInstance().addAttack(ip);
-			logger.debug(ex.getClass().getName() + ": " + ip);
-			if (b != 'x') logger.debug("...Request:\n"+toString());
+		String name = new String(buffer, start, length, FileUtil.utf8);
+		return upperCase ? name.toUpperCase() : name.toLowerCase();
+	}
+
+	//Compare a region of the buffer to a name containing only ASCII
+	//characters, ignoring case.
+	private static boolean regionMatches(byte[] buffer, int start, String name) {
+		for (int i=0; i<name.length(); i++) {
+			int b = buffer[start + i];
+			int c = name.charAt(i);
+			if (b == c) continue;
+			int lc = c | 0x20;
+			if ((lc < 'a') || (lc > 'z') || ((b | 0x20) != lc)) return false;
+		}
+		return true;
+	}
+
+	private static boolean startsWith(byte[] buffer, int start, int end, String prefix) {
+		if (end - start < prefix.length()) return false;
+		for (int i=0; i<prefix.length(); i++) {
+			if (buffer[start + i] != prefix.charAt(i)) return false;
 		}
-		return "";
+		return true;
 	}
 
-	//Add a set of cookies to a Hashtable<String,String>
-	private void addCookies(String value) {
-		String[] parts = value.split(";");
-		for (int i=0; i<parts.length; i++) {
-			String part = parts[i];
-			int k = part.indexOf("=");
-			if (k > 0) {
-				String name = part.substring(0,k).trim().toLowerCase();
+	private static int endOfLine(byte[] buffer, int start, int end) {
+		int k = indexOf(buffer, start, end, '\n');
+		return (k < 0) ? end : k;
+	}
+
+	private static int indexOf(byte[] buffer, int start, int end, int b) {
+		for (int i=start; i<end; i++) {
+			if (buffer[i] == b) return i;
+		}
+		return -1;
+	}
+
+	private static int lastIndexOf(byte[] buffer, int start, int end, int b) {
+		for (int i=end-1; i>=start; i--) {
+			if (buffer[i] == b) return i;
+		}
+		return -1;
+	}
+
+	//Get the index of the first non-whitespace byte in a region.
+	private static int skipWhitespace(byte[] buffer, int start, int end) {
+		while ((start < end) && ((buffer[start] & 0xff) <= ' ')) start++;
+		return start;
+	}
+
+	//Get the end of a region with the trailing whitespace removed.
+	private static int trimWhitespace(byte[] buffer, int start, int end) {
+		while ((end > start) && ((buffer[end-1] & 0xff) <= ' ')) end--;
+		return end;
+	}
+
+	//Parse the Cookie headers into the cookies Hashtable
+	//if they have not already been parsed.
+	private void parseCookies() {
+		if (cookiesParsed) return;
+		cookiesParsed = true;
+		if (cookieText == null) return;
+		int start = 0;
+		int length = cookieText.length();
+		while (start < length) {
+			int end = cookieText.indexOf(';', start);
+			if (end < 0) end = length;
+			int k = cookieText.indexOf('=', start);
+			if ((k > start) && (k < end)) {
+				String name = cookieText.substring(start, k).trim().toLowerCase();
 				if (!name.startsWith("$")) {
-					String val = part.substring(k+1).trim();
+					String val = cookieText.substring(k+1, end).trim();
 					cookies.put(name, val);
 				}
 			}
+			start = end + 1;
 		}
 	}
 
-	//Construct the hashtables of the query parameters.
-	//This method decodes the query string as UTF-8.
-	private void getQueryParameters(String query) {
+	//Construct the hashtables of the query parameters if they have
+	//not already been constructed. This method decodes the query
+	//string (or the form content of a POST) as UTF-8.
+	private void parseParameters() {
+		if (parametersParsed) return;
+		parametersParsed = true;
+		String text = (parameterText != null) ? parameterText : query;
 		try {
-			if (query.trim().equals("")) return;
-			String[] paramStrings = query.split("&");
-			for (String param : paramStrings) {
-				String[] paramParts = param.split("=");
-				String name = URLDecoder.decode(paramParts[0].trim(),"UTF-8");
-				if (name.startsWith("amp;")) name = name.substring(4);
-				String value = "";
-				if (paramParts.length == 2) {
-					value = URLDecoder.decode(paramParts[1].trim(),"UTF-8");
+			int start = 0;
+			int length = text.length();
+			while (start < length) {
+				int end = text.indexOf('&', start);
+				if (end < 0) end = length;
+				if (end > start) {
+					int k = text.indexOf('=', start);
+					if ((k < 0) || (k > end)) k = end;
+					String name = decodeParameter(text.substring(start, k));
+					if (name.startsWith("amp;")) name = name.substring(4);
+					String value = (k < end) ? decodeParameter(text.substring(k+1, end)) : "";
+					addParameter(name, value);
 				}
-				addParameter(name, value);
+				start = end + 1;
 			}
 		}
 		catch (Exception quit) {
@@ -705,6 +1107,12 @@ public class HttpRequest {
 		}
 	}
 
+	private static String decodeParameter(String s) throws Exception {
+		s = s.trim();
+		if ((s.indexOf('%') < 0) && (s.indexOf('+') < 0)) return s;
+		return URLDecoder.decode(s, "UTF-8");
+	}
+
 	//Read the content after the headers and return it as text.
 	//This method should only be called if the content-type is
 	//application/x-www-form-urlencoded and the content is
@@ -718,16 +1126,25 @@ public class HttpRequest {
 		catch (Exception nothingThere) { return ""; }
 	}
 
-	//Read the content after the headers.
+	//Read the content after the headers. Content which is too
+	//large to fit in an array (or which has no Content-Length)
+	//is not read; such content must be obtained with saveContent.
 	private byte[] getContentBytes() {
 		byte[] bytes = new byte[0];
 		try {
-			int contentLength = getContentLength();
-			bytes = new byte[contentLength];
+			long contentLength = getContentLengthLong();
+			if ((contentLength < 0) || (contentLength > maxArrayLength)) {
+				logger.warn("Content too large to buffer ("+contentLength+")");
+				return bytes;
+			}
+			bytes = new byte[(int)contentLength];
 			int totalBytesRead = 0;
-			while (totalBytesRead < contentLength) {
-				totalBytesRead += inputStream.read(bytes, totalBytesRead, contentLength - totalBytesRead);
+			int n;
+			while ((totalBytesRead < bytes.length)
+					&& ((n = inputStream.read(bytes, totalBytesRead, bytes.length - totalBytesRead)) != -1)) {
+				totalBytesRead += n;
 			}
+			if (totalBytesRead < bytes.length) bytes = Arrays.copyOf(bytes, totalBytesRead);
 		}
 		catch (Exception done) {
 			logger.debug("Exception caught while getting the content.", done);
@@ -778,6 +1195,7 @@ public class HttpRequest {
 	 * @return the formatted list of cookie names and values
 	 */
 	public String listCookies(String margin) {
+		parseCookies();
 		StringBuffer sb = new StringBuffer();
 		for (String key : cookies.keySet()) {
 			sb.append(margin + key + ": " + cookies.get(key) + "\n");
@@ -10,10 +10,17 @@ package org.rsna.server;
 import java.io.*;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.zip.GZIPOutputStream;
 import org.apache.log4j.Logger;
+import org.rsna.util.BufferPool;
+import org.rsna.util.Cache;
+import org.rsna.util.ChunkedOutputStream;
 import org.rsna.util.FileUtil;
 import org.rsna.util.XmlUtil;
 import org.w3c.dom.Document;
@@ -27,7 +34,10 @@ public class HttpResponse {
 
 	static final Logger logger = Logger.getLogger(HttpResponse.class);
 	static Hashtable<String,String> contentTypes = new ContentTypes();
+	static final int maxRanges = 16; //requests for more ranges get the whole file
+	static final int streamingThreshold = 16 * 1024; //bytes held before a streaming response is flushed
 	public static final int ok 				= 200;
+	public static final int partialcontent	= 206;
 	public static final int found			= 302;
 	public static final int notmodified		= 304;
 	public static final int badrequest	 	= 400;
@@ -35,18 +45,31 @@ public class HttpResponse {
 	public static final int forbidden 		= 403;
 	public static final int notfound 		= 404;
 	public static final int notallowed 		= 405;
+	public static final int rangenotsatisfiable = 416;
 	public static final int unprocessable	= 422;
 	public static final int servererror		= 500;
 	public static final int notimplemented	= 501;
+	public static final int unavailable		= 503;
 
 	protected static SimpleDateFormat dateFormat = null;
 
 	final Socket socket;
+	final OutputStream socketOutputStream;
 	final Hashtable<String,String> headers;
 	final List<ResponseItem> responseContent;
 	OutputStream outputStream;
 	long responseLength = 0;
 	int responseCode = 200;
+	boolean keepAlive = false;
+	boolean persistent = false;
+	boolean streamRequested = false;
+	int sendCount = 0;
+	boolean streaming = false;
+	boolean chunked = false;
+	boolean committed = false;
+	boolean failed = false;
+	ChunkedOutputStream chunkedStream = null;
+	OutputStream streamingOutputStream = null;
 
 	/**
 	 * Create an HttpResponse, connecting it to an OutputStream and
@@ -56,7 +79,8 @@ public class HttpResponse {
 	 */
 	public HttpResponse(Socket socket) throws Exception {
 		this.socket = socket;
-		outputStream = socket.getOutputStream();
+		socketOutputStream = socket.getOutputStream();
+		outputStream = socketOutputStream;
 		headers = new Hashtable<String,String> ();
 		responseContent = new LinkedList<ResponseItem>();
 		responseLength = 0;
@@ -66,12 +90,87 @@ public class HttpResponse {
 
 	/**
 	 * Get the OutputStream associated with this response.
+	 * Since the server cannot determine the length of content
+	 * written directly to the stream, calling this method causes
+	 * the connection to be closed after the response, unless the
+	 * response is in streaming mode (see setStreaming), in which case
+	 * the stream supplied is the response's content stream, and
+	 * writing to it commits the headers.
 	 * @return the OutputStream.
 	 */
 	public OutputStream getOutputStream() {
+		if (streaming) {
+			if (streamingOutputStream == null) streamingOutputStream = new StreamingOutputStream();
+			return streamingOutputStream;
+		}
+		streamRequested = true;
 		return outputStream;
 	}
 
+	/**
+	 * Put the response in streaming mode. In this mode, content items are
+	 * not held until the send method is called; the headers are committed
+	 * and the content is sent when the flush method is called or enough
+	 * content has accumulated, so headers and the response code must be set
+	 * before then. If the request is HTTP/1.1, the content is sent with
+	 * Transfer-Encoding: chunked, and the connection can be kept open;
+	 * otherwise, the connection is closed to mark the end of the content.
+	 * If the Content-Encoding header is gzip, the content is compressed
+	 * as it is sent. The send method must be called to complete the response.
+	 * This method must be called before any content is added to the response.
+	 * @param req the request, which determines whether chunked encoding is used.
+	 */
+	public void setStreaming(HttpRequest req) {
+		if (committed || !responseContent.isEmpty()) {
+			logger.warn("Streaming mode must be set before content is added to the response.");
+			return;
+		}
+		streaming = true;
+		chunked = req.getProtocolVersion().equals("1.1");
+	}
+
+	/**
+	 * Send the content added to a streaming response so far, committing the
+	 * headers if they have not already been sent. This method does nothing
+	 * if the response is not in streaming mode.
+	 * @return true if the content was sent; false otherwise.
+	 */
+	public boolean flush() {
+		if (!streaming) return false;
+		try {
+			flushItems();
+			outputStream.flush();
+			return !failed;
+		}
+		catch (Exception ex) {
+			fail();
+			return false;
+		}
+	}
+
+	/**
+	 * Specify whether the connection may be kept open after this
+	 * response is sent. The default is false, in which case the
+	 * response includes the Connection: close header.
+	 * @param keepAlive true if the connection may be reused for
+	 * another request; false otherwise.
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Determine whether the connection can be used for another request
+	 * after this response. This is true only if keep-alive was enabled,
+	 * the response was sent exactly once with a Content-Length header
+	 * (or, in streaming mode, with chunked transfer-coding), and the
+	 * OutputStream was not obtained by the servlet outside streaming mode.
+	 * @return true if the connection can be kept open; false otherwise.
+	 */
+	public boolean isPersistent() {
+		return persistent && (sendCount == 1) && !streamRequested;
+	}
+
 	/**
 	 * Flush and close the OutputStream associated with this response.
 	 */
@@ -297,8 +396,7 @@ public class HttpResponse {
 	public void write(String string) {
 		try {
 			ResponseItem item = new ResponseItem(string);
-			responseContent.add(item);
-			responseLength += item.length;
+			addItem(item);
 		}
 		catch (Exception ignore) {
 			logger.warn("Could not add \""+string+"\" to the response.");
@@ -312,14 +410,197 @@ public class HttpResponse {
 	public void write(File file) {
 		try {
 			ResponseItem item = new ResponseItem(file);
-			responseContent.add(item);
-			responseLength += item.length;
+			addItem(item);
 		}
 		catch (Exception ignore) {
 			logger.warn("Unable to add file "+file+" to the response.");
 		}
 	}
 
+	/**
+	 * Add a section of a file as a content item to the response.
+	 * @param file the file whose contents are to be added to the response.
+	 * @param offset the offset of the first byte to be sent.
+	 * @param length the number of bytes to be sent.
+	 */
+	public void write(File file, long offset, long length) {
+		try {
+			ResponseItem item = new ResponseItem(file, offset, length);
+			addItem(item);
+		}
+		catch (Exception ignore) {
+			logger.warn("Unable to add a section of file "+file+" to the response.");
+		}
+	}
+
+	/**
+	 * Add a file content item to the response, honoring any Range
+	 * header in the request. If the request contains a satisfiable Range
+	 * header (and an If-Range header, if present, matches the file), the
+	 * response code is set to 206 (Partial Content) and only the requested
+	 * ranges are sent, with a Content-Range header for a single range or
+	 * as a multipart/byteranges entity for multiple ranges. Requests for
+	 * many ranges, or for overlapping ranges totaling more than the file,
+	 * get the whole file. If none of
+	 * the ranges can be satisfied, the response code is set to 416. Otherwise,
+	 * the whole file is added to the response. Ranges are ignored if the
+	 * response is gzip-encoded. This method sets the Accept-Ranges header
+	 * and uses the file's last modified time as the ETag, as Servlet.doGet does.
+	 * <p>
+	 * If the Content-Encoding header has been set to gzip (see setContentEncoding),
+	 * the file is sent in a compressed form which does not have to be compressed
+	 * during the response: a foo.br or foo.gz file next to the original file
+	 * (if it is at least as new as the original and the client accepts that encoding),
+	 * or the compressed contents from the GzipCache. Such a response has a Content-Length
+	 * and can be sent on a persistent connection. If other content items are added to
+	 * the response, the file is compressed with the rest of the response when it is sent.
+	 * @param file the file whose contents are to be added to the response.
+	 * @param req the request containing the Range header.
+	 */
+	public void write(File file, HttpRequest req) {
+		if (!streaming && "gzip".equals(headers.get("Content-Encoding")) && writeEncoded(file, req)) return;
+		long fileLength = file.length();
+		long lastModified = file.lastModified();
+		List<ByteRange> ranges = req.getRanges(fileLength);
+		if (!headers.containsKey("Content-Encoding")) setHeader("Accept-Ranges", "bytes");
+		if ((ranges == null)
+				|| headers.containsKey("Content-Encoding")
+					|| (ranges.size() > maxRanges)
+						|| (getTotalLength(ranges) > fileLength)
+							|| !req.ifRangeMatches("\""+lastModified+"\"", lastModified)) {
+			write(file);
+		}
+		else if (ranges.size() == 0) {
+			setResponseCode(rangenotsatisfiable);
+			setHeader("Content-Range", "bytes */" + fileLength);
+		}
+		else if (ranges.size() == 1) {
+			ByteRange range = ranges.get(0);
+			setResponseCode(partialcontent);
+			setHeader("Content-Range", range.getContentRange(fileLength));
+			write(file, range.first, range.getLength());
+		}
+		else {
+			String boundary = "RANGE_" + Long.toHexString(System.nanoTime());
+			String contentType = headers.get("Content-Type");
+			setResponseCode(partialcontent);
+			setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+			for (ByteRange range : ranges) {
+				write("\r\n--" + boundary + "\r\n"
+						+ ((contentType != null) ? "Content-Type: " + contentType + "\r\n" : "")
+						+ "Content-Range: " + range.getContentRange(fileLength) + "\r\n\r\n");
+				write(file, range.first, range.getLength());
+			}
+			write("\r\n--" + boundary + "--\r\n");
+		}
+	}
+
+	/**
+	 * Add a resource from the Cache to the response, with its Last-Modified
+	 * and ETag headers. A resource which is kept in memory or served from a
+	 * mapped archive is sent without reading a file, in its compressed form if
+	 * the Content-Encoding header has been set to gzip (see setContentEncoding).
+	 * Range requests for resources which have files, and resources which are
+	 * not kept in memory, are handled as in write(File, HttpRequest). Range
+	 * requests for archive resources get the whole resource.
+	 * @param resource the resource whose contents are to be added to the response.
+	 * @param req the request.
+	 */
+	public void write(Cache.Resource resource, HttpRequest req) {
+		byte[] bytes = resource.getBytes();
+		ByteBuffer buffer = resource.getBuffer();
+		byte[] gzipBytes = resource.getGzipBytes();
+		File file = resource.getFile();
+		boolean gzip = "gzip".equals(headers.get("Content-Encoding"));
+		try {
+			ResponseItem content = (bytes != null) ? new ResponseItem(bytes)
+									: (buffer != null) ? new ResponseItem(buffer) : null;
+			if ((content == null) || ((file != null) && !gzip && (req.getHeader("Range") != null))) {
+				write(file, req);
+			}
+			else if (gzip && !streaming && (gzipBytes != null)) {
+				ResponseItem item = new ResponseItem(gzipBytes);
+				item.original = content;
+				responseContent.add(item);
+				responseLength += item.length;
+				setHeader("Vary", "Accept-Encoding");
+			}
+			else {
+				//Ranges are only supported for resources which have files.
+				if (!gzip && (file != null)) setHeader("Accept-Ranges", "bytes");
+				addItem(content);
+			}
+			setHeader("Last-Modified", resource.getLastModifiedDate());
+			setHeader("ETag", resource.getETag());
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to add the resource "+resource.getFile()+" to the response.");
+		}
+	}
+
+	//Add a pre-compressed form of a file to the response, returning
+	//false if no compressed form is available.
+	private boolean writeEncoded(File file, HttpRequest req) {
+		try {
+			ResponseItem item = null;
+			String encoding = "gzip";
+			File br = new File(file.getPath() + ".br");
+			File gz = new File(file.getPath() + ".gz");
+			if (acceptsEncoding(req, "br") && isCurrentVariant(br, file)) {
+				item = new ResponseItem(br);
+				encoding = "br";
+			}
+			else if (isCurrentVariant(gz, file)) item = new ResponseItem(gz);
+			else {
+				byte[] bytes = GzipCache.get(file);
+				if (bytes != null) item = new ResponseItem(bytes);
+			}
+			if (item == null) return false;
+			item.original = new ResponseItem(file);
+			responseContent.add(item);
+			responseLength += item.length;
+			setHeader("Content-Encoding", encoding);
+			setHeader("Vary", "Accept-Encoding");
+			return true;
+		}
+		catch (Exception ex) { return false; }
+	}
+
+	//Determine whether a compressed sibling of a file exists
+	//and is at least as new as the file.
+	private static boolean isCurrentVariant(File variant, File file) {
+		return variant.isFile() && (variant.lastModified() >= file.lastModified());
+	}
+
+	//Determine whether the Accept-Encoding header of a request lists
+	//a content coding without disabling it with q=0.
+	private static boolean acceptsEncoding(HttpRequest req, String coding) {
+		String accept = req.getHeader("Accept-Encoding", "").toLowerCase();
+		for (String token : accept.split(",")) {
+			String[] parts = token.split(";");
+			if (parts[0].trim().equals(coding)) {
+				for (int i=1; i<parts.length; i++) {
+					String q = parts[i].trim();
+					if (q.startsWith("q=")) {
+						try { if (Double.parseDouble(q.substring(2).trim()) == 0) return false; }
+						catch (NumberFormatException ignore) { }
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Get the total number of bytes in a list of ranges. Overlapping
+	//ranges can make this larger than the file; such requests get the
+	//whole file instead.
+	private static long getTotalLength(List<ByteRange> ranges) {
+		long total = 0;
+		for (ByteRange range : ranges) total += range.getLength();
+		return total;
+	}
+
 	/**
 	 * Add a byte array content item to the response.
 	 * @param bytes to be added to the response.
@@ -327,8 +608,7 @@ public class HttpResponse {
 	public void write(byte[] bytes) {
 		try {
 			ResponseItem item = new ResponseItem(bytes);
-			responseContent.add(item);
-			responseLength += item.length;
+			addItem(item);
 		}
 		catch (Exception ignore) {
 			logger.warn("Unable to add the byte array to the response.");
@@ -343,14 +623,81 @@ public class HttpResponse {
 		try {
 			byte[] bytes = FileUtil.getBytes( url.openStream() );
 			ResponseItem item = new ResponseItem(bytes);
-			responseContent.add(item);
-			responseLength += item.length;
+			addItem(item);
 		}
 		catch (Exception ignore) {
 			logger.warn("Unable to add the resource "+url+" to the response.");
 		}
 	}
 
+	//Add an item to the response. In streaming mode, send the
+	//accumulated items when they reach the threshold.
+	private void addItem(ResponseItem item) {
+		responseContent.add(item);
+		responseLength += item.length;
+		if (streaming && (responseLength >= streamingThreshold)) {
+			try { flushItems(); }
+			catch (Exception ex) { fail(); }
+		}
+	}
+
+	//Write the accumulated items of a streaming response.
+	private void flushItems() throws Exception {
+		if (failed) {
+			responseContent.clear();
+			return;
+		}
+		commit();
+		decodeItems();
+		for (ResponseItem item : responseContent) item.write();
+		responseContent.clear();
+		responseLength = 0;
+	}
+
+	//Send the preamble of a streaming response and set up the content stream.
+	private void commit() throws Exception {
+		if (committed) return;
+		committed = true;
+		String encoding = headers.get("Content-Encoding");
+		boolean isGzipEncoding = (encoding != null) && encoding.equals("gzip");
+		persistent = keepAlive && chunked && !streamRequested;
+		headers.put("Connection", (persistent ? "keep-alive" : "close"));
+		if (chunked) headers.put("Transfer-Encoding", "chunked");
+		String preamble =
+			"HTTP/1.1 " + responseCode + "\r\n" +
+			getHeadersString() +
+			"\r\n";
+		outputStream.write(preamble.getBytes("UTF-8"));
+		if (chunked) {
+			chunkedStream = new ChunkedOutputStream(outputStream, BufferPool.bufferSize);
+			outputStream = chunkedStream;
+		}
+		if (isGzipEncoding) outputStream = new GZIPOutputStream(outputStream, true); //syncFlush
+	}
+
+	//Complete a streaming response.
+	private boolean finishStreaming() {
+		try {
+			flushItems();
+			if (outputStream instanceof GZIPOutputStream) ((GZIPOutputStream)outputStream).finish();
+			if (chunkedStream != null) chunkedStream.finish();
+			outputStream.flush();
+			return !failed;
+		}
+		catch (Exception ex) {
+			fail();
+			return false;
+		}
+	}
+
+	//Note that a streaming response could not be sent.
+	private void fail() {
+		failed = true;
+		persistent = false;
+		responseContent.clear();
+		responseLength = 0;
+	}
+
 	/**
 	 * Set the HttpResponse to trigger a redirect. This method sets
 	 * the HTTP response code to 302, adds the Location header,
@@ -369,15 +716,27 @@ public class HttpResponse {
 	 * @return true if the transmission succeeds; false otherwise.
 	 */
 	public boolean send() {
+		if (streaming) {
+			sendCount++;
+			if (sendCount > 1) persistent = false;
+			return finishStreaming();
+		}
 		try {
+			//A pre-compressed file can only be sent as-is if it is the
+			//whole response; otherwise, send everything compressed here.
+			boolean preEncoded = (responseContent.size() == 1) && (responseContent.get(0).original != null);
+			if (!preEncoded) decodeItems();
 			String encoding = headers.get("Content-Encoding");
-			boolean isGzipEncoding = (encoding != null) && encoding.equals("gzip");
+			boolean isGzipEncoding = !preEncoded && (encoding != null) && encoding.equals("gzip");
 			String contentType = headers.get("Content-Type");
 			boolean isZipContentType = (contentType != null) && contentType.contains("/zip");
 			if (isGzipEncoding && isZipContentType) {
 				headers.remove("Content-Encoding");
 				isGzipEncoding = false;
 			}
+			sendCount++;
+			persistent = keepAlive && !isGzipEncoding && !streamRequested && (sendCount == 1);
+			headers.put("Connection", (persistent ? "keep-alive" : "close"));
 			String preamble =
 				"HTTP/1.1 " + responseCode + "\r\n" +
 				getHeadersString() +
@@ -393,10 +752,26 @@ public class HttpResponse {
 		}
 		catch (Exception ex) {
 			//logger.error("Unable to send the response.", ex);
+			persistent = false;
 			return false;
 		}
 	}
 
+	//Replace pre-compressed items with their originals.
+	private void decodeItems() {
+		boolean decoded = false;
+		ListIterator<ResponseItem> it = responseContent.listIterator();
+		while (it.hasNext()) {
+			ResponseItem item = it.next();
+			if (item.original != null) {
+				responseLength += item.original.length - item.length;
+				it.set(item.original);
+				decoded = true;
+			}
+		}
+		if (decoded) headers.put("Content-Encoding", "gzip");
+	}
+
 	//Get all the headers as a string.
 	String getHeadersString() {
 		StringBuffer sb = new StringBuffer();
@@ -423,18 +798,49 @@ public class HttpResponse {
 		return sb.toString();
 	}
 
+	//The content stream of a streaming response.
+	class StreamingOutputStream extends OutputStream {
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			try { flushItems(); }
+			catch (Exception ex) { fail(); }
+			if (failed) throw new IOException("Unable to send the response.");
+			try { outputStream.write(b, off, len); }
+			catch (IOException ex) {
+				fail();
+				throw ex;
+			}
+		}
+		public void flush() throws IOException {
+			if (!HttpResponse.this.flush()) throw new IOException("Unable to send the response.");
+		}
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
 	//A class to encapsulate one part of the content of a response.
 	class ResponseItem {
 
 		byte[] bytes = null;
+		ByteBuffer buffer = null;
 		File file = null;
+		long offset = 0;
 		long length = 0;
+		ResponseItem original = null; //the uncompressed form of a pre-compressed item
 
 		public ResponseItem(byte[] bytes) throws Exception {
 			this.bytes = bytes;
 			length = bytes.length;
 		}
 
+		public ResponseItem(ByteBuffer buffer) throws Exception {
+			this.buffer = buffer.duplicate();
+			length = buffer.remaining();
+		}
+
 		public ResponseItem(String string) throws Exception {
 			bytes = string.getBytes("UTF-8");
 			length = bytes.length;
@@ -445,23 +851,98 @@ public class HttpResponse {
 			length = file.length();
 		}
 
+		public ResponseItem(File file, long offset, long length) throws Exception {
+			if ((offset < 0) || (length < 0) || (offset + length > file.length())) {
+				throw new IOException("Invalid section ("+offset+","+length+") of "+file);
+			}
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
 		public void write() {
-			BufferedInputStream inputStream = null;
 			try {
 				if (bytes != null) outputStream.write(bytes);
+				else if (buffer != null) {
+					SocketChannel channel = socket.getChannel();
+					if ((channel != null) && (outputStream == socketOutputStream)) writeBuffer(channel);
+					else copyBuffer();
+				}
 				else if (file != null) {
-					inputStream = new BufferedInputStream(new FileInputStream(file));
-					int nbytes;
-					byte[] buffer = new byte[2048];
-					while ((nbytes = inputStream.read(buffer)) != -1) {
-						outputStream.write(buffer, 0, nbytes);
-					}
+					SocketChannel channel = socket.getChannel();
+					if ((channel != null) && (outputStream == socketOutputStream)) transferFile(channel);
+					else copyFile();
 				}
 			}
 			catch (Exception ignore) {
 				logger.debug("Unable to send response object.", ignore);
+				persistent = false;
+				failed = true;
+			}
+		}
+
+		//Send the file directly from the file system to the socket.
+		//This is only possible when the content is not encoded.
+		private void transferFile(SocketChannel channel) throws Exception {
+			FileChannel fileChannel = null;
+			try {
+				fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				long position = offset;
+				long end = offset + length;
+				while (position < end) {
+					long n = fileChannel.transferTo(position, end - position, channel);
+					if (n <= 0) break;
+					position += n;
+				}
+				if (position < end) throw new IOException("File truncated during transfer: "+file);
+			}
+			finally { FileUtil.close(fileChannel); }
+		}
+
+		//Write the buffer directly to the socket. This is only
+		//possible when the content is not encoded.
+		private void writeBuffer(SocketChannel channel) throws Exception {
+			ByteBuffer b = buffer.duplicate();
+			while (b.hasRemaining()) {
+				if (channel.write(b) <= 0) break;
+			}
+			if (b.hasRemaining()) throw new IOException("Incomplete write of a buffer");
+		}
+
+		//Copy the buffer through a pooled array, for SSL and encoded responses.
+		private void copyBuffer() throws Exception {
+			ByteBuffer b = buffer.duplicate();
+			byte[] array = BufferPool.getBuffer();
+			try {
+				while (b.hasRemaining()) {
+					int n = Math.min(array.length, b.remaining());
+					b.get(array, 0, n);
+					outputStream.write(array, 0, n);
+				}
+			}
+			finally { BufferPool.releaseBuffer(array); }
+		}
+
+		//Copy the file through a pooled buffer, for SSL and encoded responses.
+		private void copyFile() throws Exception {
+			FileInputStream inputStream = null;
+			byte[] buffer = BufferPool.getBuffer();
+			try {
+				inputStream = new FileInputStream(file);
+				if (offset > 0) inputStream.getChannel().position(offset);
+				long remaining = length;
+				int nbytes;
+				while ((remaining > 0)
+						&& ((nbytes = inputStream.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1)) {
+					outputStream.write(buffer, 0, nbytes);
+					remaining -= nbytes;
+				}
+				if (remaining > 0) throw new IOException("File truncated during transfer: "+file);
+			}
+			finally {
+				FileUtil.close(inputStream);
+				BufferPool.releaseBuffer(buffer);
 			}
-			finally { FileUtil.close(inputStream); }
 		}
 	}
 
@@ -13,13 +13,17 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLServerSocketFactory;
 import org.apache.log4j.Logger;
 import org.rsna.util.IPUtil;
+import org.rsna.util.VirtualThreadExecutor;
 
 
 /**
@@ -36,6 +40,14 @@ public class HttpServer extends Thread {
 	final ServerSocket serverSocket;
 	final ThreadPoolExecutor execSvc;
 	final LinkedBlockingQueue<Runnable> queue;
+	final VirtualThreadExecutor vtExec;
+	final HttpChannelEngine engine;
+	static final int nioKeepAliveTimeout = 15000; //default for the non-blocking engine
+	volatile int keepAliveTimeout = 0; //ms to wait for the next request on a connection; 0 disables keep-alive
+	volatile int maxKeepAliveRequests = 100; //max requests per connection
+	volatile int maxQueuedConnections = Integer.MAX_VALUE; //connections allowed to wait for a thread
+	volatile int retryAfter = 5; //seconds suggested to rejected clients
+	final AtomicLong rejectedConnections = new AtomicLong();
 
 	/**
 	 * Class constructor; creates a new instance of
@@ -47,32 +59,104 @@ public class HttpServer extends Thread {
 	 * @throws Exception if the ServerSocket cannot be created.
 	 */
     public HttpServer(boolean ssl, int port, int maxThreads, ServletSelector selector) throws Exception {
+		this(ssl, port, maxThreads, selector, false);
+	}
+
+	/**
+	 * Class constructor; creates a new instance of
+	 * the HttpServer thread on the specified port, optionally using
+	 * a non-blocking connection engine. With the non-blocking engine,
+	 * connections are accepted and request heads are read by a single
+	 * selector thread, and pool threads are used only while requests
+	 * are being serviced, so idle and slow connections do not count
+	 * against maxThreads. The non-blocking engine is not available
+	 * for SSL servers; if ssl is true, the blocking engine is used.
+	 * @param ssl true if connections to this server require SSL
+	 * @param port the port on which this server listens for connections
+	 * @param maxThreads the maximum number of concurrent threads allowed.
+	 * @param selector the translator from requested resources to servlets
+	 * @param nio true if the non-blocking connection engine is to be used.
+	 * @throws Exception if the ServerSocket cannot be created.
+	 */
+    public HttpServer(boolean ssl, int port, int maxThreads, ServletSelector selector, boolean nio) throws Exception {
+		this(ssl, port, maxThreads, selector, nio, false);
+	}
+
+	/**
+	 * Class constructor; creates a new instance of
+	 * the HttpServer thread on the specified port, optionally using
+	 * a non-blocking connection engine and optionally running each
+	 * connection on its own virtual thread. In virtual thread mode,
+	 * maxThreads limits the number of connections serviced concurrently,
+	 * and connections waiting for a permit are reported as queued.
+	 * On JVMs without virtual threads, that mode uses a fixed pool of
+	 * maxThreads platform threads.
+	 * @param ssl true if connections to this server require SSL
+	 * @param port the port on which this server listens for connections
+	 * @param maxThreads the maximum number of concurrent threads allowed.
+	 * @param selector the translator from requested resources to servlets
+	 * @param nio true if the non-blocking connection engine is to be used.
+	 * @param virtualThreads true if connections are to be serviced on virtual threads.
+	 * @throws Exception if the ServerSocket cannot be created.
+	 */
+    public HttpServer(boolean ssl, int port, int maxThreads, ServletSelector selector,
+					  boolean nio, boolean virtualThreads) throws Exception {
 		super("HttpServer");
 		this.ssl = ssl;
 		this.port = port;
 		this.maxThreads = maxThreads;
 		this.selector = selector;
-		
+
 		queue = new LinkedBlockingQueue<Runnable>();
-		ServerSocketFactory serverSocketFactory =
-			ssl ? SSLServerSocketFactory.getDefault() : ServerSocketFactory.getDefault();
-		serverSocket = serverSocketFactory.createServerSocket(port);
-		execSvc = new ThreadPoolExecutor( maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue );
+		if (nio && ssl) logger.warn("The non-blocking engine does not support SSL; using the blocking engine.");
+		if (nio && !ssl) {
+			engine = new HttpChannelEngine(this, port);
+			serverSocket = engine.getServerSocket();
+			//The engine releases the thread while a connection is idle,
+			//so persistent connections do not consume the thread pool.
+			keepAliveTimeout = nioKeepAliveTimeout;
+		}
+		else if (!ssl) {
+			//Plain sockets are obtained from a channel so files can be sent with FileChannel.transferTo.
+			engine = null;
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverSocket = serverChannel.socket();
+			serverSocket.bind(new InetSocketAddress(port));
+		}
+		else {
+			engine = null;
+			ServerSocketFactory serverSocketFactory = SSLServerSocketFactory.getDefault();
+			serverSocket = serverSocketFactory.createServerSocket(port);
+		}
+		if (virtualThreads) {
+			vtExec = new VirtualThreadExecutor("HttpHandler", maxThreads);
+			execSvc = null;
+		}
+		else {
+			vtExec = null;
+			execSvc = new ThreadPoolExecutor( maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue );
+		}
 	}
 
 	/**
 	 * Start the HttpServer and accept connections.
 	 */
 	public void run() {
-		logger.info((ssl?"SSL ":"")+"HttpServer started on port "+port+" [maxThreads="+maxThreads+"]");
+		logger.info((ssl?"SSL ":"")+"HttpServer started on port "+port+" [maxThreads="+maxThreads+"]"
+						+((engine!=null)?" [nio]":"")+((vtExec!=null)?" [virtual threads]":""));
 		logger.info((ssl?"SSL ":"")+"HttpServer IP adddress: "+IPUtil.getIPAddress());
+		if (engine != null) {
+			//The engine runs until this thread is interrupted, then closes the server socket.
+			engine.run();
+			return;
+		}
 		while (!this.isInterrupted()) {
 			try {
 				//Wait for a connection
 				final Socket socket = serverSocket.accept();
 
 				//Handle the connection in a separate thread
-				execSvc.execute( new HttpHandler(socket, selector, this) );
+				execute( new HttpHandler(socket, selector, this) );
 			}
 			catch (Exception ex) { break; }
 		}
@@ -80,15 +164,118 @@ public class HttpServer extends Thread {
 		catch (Exception ignore) { logger.warn("Unable to close the server socket."); }
 	}
 
+	//Pass a handler to the thread pool, or reject its
+	//connection if too many connections are already waiting.
+	//Return true if the handler was accepted.
+	boolean execute(HttpHandler handler) {
+		if (getQueuedThreads() < maxQueuedConnections) {
+			try {
+				if (vtExec != null) vtExec.execute(handler);
+				else execSvc.execute(handler);
+				return true;
+			}
+			catch (RejectedExecutionException shuttingDown) { }
+		}
+		reject(handler.socket);
+		return false;
+	}
+
+	//Send a 503 response on the acceptor thread and close the connection.
+	//On SSL connections the response is not sent, since the TLS handshake
+	//would stall the acceptor; the socket is simply closed.
+	private void reject(Socket socket) {
+		rejectedConnections.incrementAndGet();
+		logger.debug("Connection rejected; "+getQueuedThreads()+" connections are queued.");
+		if (!ssl) {
+			try {
+				HttpResponse res = new HttpResponse(socket);
+				res.setResponseCode(HttpResponse.unavailable);
+				res.setHeader("Retry-After", Integer.toString(retryAfter));
+				res.setContentType("txt");
+				res.write("The server is busy. Please try again later.");
+				res.send();
+				socket.shutdownOutput();
+			}
+			catch (Exception ignore) { }
+		}
+		try { socket.close(); }
+		catch (Exception ignore) { }
+	}
+
+	/**
+	 * Set the limit on the number of connections waiting for a thread.
+	 * When the limit is reached, new connections are rejected with a
+	 * 503 (Service Unavailable) response which includes a Retry-After
+	 * header. By default, the number of waiting connections is not limited.
+	 * @param maxQueuedConnections the maximum number of connections
+	 * allowed to wait for a thread.
+	 * @param retryAfter the number of seconds the client is asked to wait
+	 * before retrying a rejected request.
+	 */
+	public void setMaxQueuedConnections(int maxQueuedConnections, int retryAfter) {
+		this.maxQueuedConnections = Math.max(maxQueuedConnections, 0);
+		this.retryAfter = Math.max(retryAfter, 0);
+	}
+
+	/**
+	 * Get the limit on the number of connections waiting for a thread.
+	 * @return the maximum number of connections allowed to wait for a thread.
+	 */
+	public int getMaxQueuedConnections() {
+		return maxQueuedConnections;
+	}
+
+	/**
+	 * Get the number of connections rejected because too
+	 * many connections were waiting for a thread.
+	 * @return the number of rejected connections since the server was created.
+	 */
+	public long getRejectedConnections() {
+		return rejectedConnections.get();
+	}
+
 	/**
 	 * Stop the HttpServer.
 	 */
 	public void shutdown() {
-		execSvc.shutdown();
+		if (vtExec != null) vtExec.shutdown();
+		else execSvc.shutdown();
 		this.interrupt();
 		selector.shutdown();
 	}
 
+	/**
+	 * Set the parameters controlling persistent (keep-alive) connections.
+	 * Keep-alive is disabled by default, except with the non-blocking engine,
+	 * because the blocking engines hold a thread for each idle connection.
+	 * @param keepAliveTimeout the time in milliseconds to wait for the next
+	 * request on an idle connection before closing it, or 0 to close every
+	 * connection after the first response.
+	 * @param maxKeepAliveRequests the maximum number of requests to serve on
+	 * one connection, or 1 to close every connection after the first response.
+	 */
+	public void setKeepAlive(int keepAliveTimeout, int maxKeepAliveRequests) {
+		this.keepAliveTimeout = Math.max(keepAliveTimeout, 0);
+		this.maxKeepAliveRequests = Math.max(maxKeepAliveRequests, 1);
+	}
+
+	/**
+	 * Get the keep-alive timeout.
+	 * @return the time in milliseconds that an idle connection is kept open,
+	 * or 0 if keep-alive is disabled.
+	 */
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	/**
+	 * Get the maximum number of requests per connection.
+	 * @return the maximum number of requests served on one connection.
+	 */
+	public int getMaxKeepAliveRequests() {
+		return maxKeepAliveRequests;
+	}
+
 	/**
 	 * Get the ServletSelector.
 	 * @return the ServletSelector for this HttpServer
@@ -118,7 +305,7 @@ public class HttpServer extends Thread {
 	 * @return the number of active Threads currently servicing requests in this HttpServer
 	 */
 	public int getActiveThreads() {
-		return execSvc.getActiveCount();
+		return (vtExec != null) ? vtExec.getActiveCount() : execSvc.getActiveCount();
 	}
 
 	/**
@@ -126,7 +313,33 @@ public class HttpServer extends Thread {
 	 * @return the number of Threads currently waiting in the queue
 	 */
 	public int getQueuedThreads() {
-		return queue.size();
+		return (vtExec != null) ? vtExec.getQueuedCount() : queue.size();
+	}
+
+	/**
+	 * Get the number of open connections. This value is only
+	 * available when the non-blocking engine is in use.
+	 * @return the number of open connections, including idle
+	 * persistent connections, or -1 if the blocking engine is in use.
+	 */
+	public int getOpenConnections() {
+		return (engine != null) ? engine.getConnectionCount() : -1;
+	}
+
+	/**
+	 * Get the non-blocking engine flag.
+	 * @return true if this server uses the non-blocking connection engine; false otherwise.
+	 */
+	public boolean getNIO() {
+		return (engine != null);
+	}
+
+	/**
+	 * Get the virtual thread flag.
+	 * @return true if this server services connections on virtual threads; false otherwise.
+	 */
+	public boolean getVirtualThreads() {
+		return (vtExec != null);
 	}
 
 	/**
@@ -0,0 +1,27 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.server;
+
+import org.rsna.servlets.Servlet;
+
+/**
+ * The interface for objects which supply the Servlets that
+ * process requests for a context in a ServletSelector.
+ */
+public interface ServletFactory {
+
+	/**
+	 * Get a Servlet to process a request. The factory may return
+	 * a new instance for each request or, if the servlet keeps no
+	 * per-request state in its fields, the same instance every time.
+	 * @return the servlet.
+	 * @throws Exception if the servlet cannot be supplied.
+	 */
+	public Servlet getServlet() throws Exception;
+
+}
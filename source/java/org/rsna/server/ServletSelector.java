@@ -8,26 +8,39 @@
 package org.rsna.server;
 
 import java.io.File;
-import java.lang.reflect.Constructor;
-import java.util.Hashtable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.LinkedList;
 import org.apache.log4j.Logger;
 import org.rsna.servlets.LoginServlet;
 import org.rsna.servlets.Servlet;
 
 /**
  * A class to select a servlet to process a request..
+ * Servlets are installed on contexts consisting of one or more
+ * path elements (for example, "service" or "service/v2"), and
+ * each request is routed to the servlet with the longest context
+ * which is a prefix of the request path and which accepts the
+ * request method.
  */
 public class ServletSelector {
 
 	static final Logger logger = Logger.getLogger(ServletSelector.class);
 
+	static final MethodType constructorType = MethodType.methodType(void.class, File.class, String.class);
+	static final MethodType factoryType = MethodType.methodType(Servlet.class);
+
 	File root;
 	boolean requireAuthentication;
-	Hashtable<String,Class<? extends Servlet>> servlets;
+	final Node routes = new Node("");
+	Servlet defaultServlet;
+	Servlet loginServlet;
 
 	/**
 	 * Class constructor; creates a new instance of the ServletSelector
-	 * using the first path element to select a Servlet,
+	 * using the leading path elements to select a Servlet,
 	 * @param root the root directory of the servlet collection.
 	 * @param requireAuthentication true if all accesses must be authenticated.
 	 */
@@ -36,24 +49,38 @@ public class ServletSelector {
 					boolean requireAuthentication) {
 		this.root = root;
 		this.requireAuthentication = requireAuthentication;
-		this.servlets = new Hashtable<String,Class<? extends Servlet>>();
 		Servlet.init(root, ""); //Initialize the base servlet.
+
+		//The base servlet and the login servlet keep no state
+		//between requests, so one instance of each is shared.
+		defaultServlet = new Servlet(root, "");
+		loginServlet = new LoginServlet(root, "");
 	}
 
 	/**
-	 * Add a Servlet.
+	 * Add a Servlet which is instantiated for each request.
 	 * @param path the path string associated with the servlet.
 	 * @param servlet the class to be instantiated for the servlet.
 	 */
 	public void addServlet(String path, Class<? extends Servlet> servlet) {
-		//Check for a duplicate path
-		if (servlets.get(path) != null) {
-			logger.debug("Installing "+servlet.getName()+" on an existing context ("+path+")");
-		}
-
-		//Put the servlet in the table, even if it is a duplicate.
-		servlets.put(path, servlet);
+		addServlet(path, servlet, false);
+	}
 
+	/**
+	 * Add a Servlet, resolving its constructor once so requests
+	 * do not require reflection. A singleton servlet is instantiated
+	 * once and the instance is used for all requests, so it must be
+	 * thread-safe and must not keep per-request state in its fields.
+	 * @param path the path string associated with the servlet. The path
+	 * may contain multiple elements separated by slashes.
+	 * @param servlet the class to be instantiated for the servlet.
+	 * @param singleton true if one instance of the servlet is to be
+	 * used for all requests; false if each request is to be processed
+	 * by a new instance.
+	 * @param methods the HTTP methods (e.g., "GET") for which the servlet
+	 * is selected, or none if the servlet is selected for all methods.
+	 */
+	public void addServlet(String path, Class<? extends Servlet> servlet, boolean singleton, String... methods) {
 		//Initialize the servlet
 		Class[] signature = { File.class, String.class };
 		Object[] args = { root, path };
@@ -61,67 +88,118 @@ public class ServletSelector {
 		catch (Exception skip) {
 			logger.warn("Unable to initialize "+servlet.getName()+" for path "+path);
 		}
+
+		//Make the factory
+		try {
+			ServletFactory factory = new ConstructorFactory(servlet, root, path);
+			if (singleton) factory = new SingletonFactory(factory.getServlet());
+			addServlet(path, factory, methods);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to instantiate "+servlet.getName()+" for path "+path, ex);
+		}
+	}
+
+	/**
+	 * Add a factory which supplies the servlets for a path. The
+	 * static init method of the servlet class is not called.
+	 * @param path the path string associated with the servlet. The path
+	 * may contain multiple elements separated by slashes.
+	 * @param factory the factory which supplies the servlets.
+	 * @param methods the HTTP methods (e.g., "GET") for which the servlet
+	 * is selected, or none if the servlet is selected for all methods.
+	 */
+	public synchronized void addServlet(String path, ServletFactory factory, String... methods) {
+		Node node = routes;
+		for (String element : path.split("/")) {
+			element = element.trim();
+			if (!element.equals("")) node = node.addChild(element);
+		}
+		//Put the servlet in the table, even if it is a duplicate.
+		if (node.addRoute(new Route(path, factory, methods))) {
+			logger.debug("Installed a servlet on an existing context ("+path+")");
+		}
 	}
 
 	/**
 	 * Get the servlet which is associated with the requested path.
 	 * If authentication is required and the user is not authenticated,
-	 * return an instance of the LoginServlet. Otherwise, return an
-	 * instance of the servlet class identified by the appropriate path element
-	 * in the request path. If no servlet matches the path, return an
-	 * instance of the Servlet class.
+	 * return the LoginServlet. Otherwise, return the servlet supplied
+	 * by the factory with the longest context matching the leading
+	 * elements of the request path. If no servlet matches the path,
+	 * return an instance of the Servlet class. The context of the
+	 * selected servlet and the remainder of the path are available
+	 * from the request's getContext and getSubPath methods.
 	 * @param req the request.
-	 * @return an instance of the servlet class which matches the request path.
+	 * @return the servlet which matches the request path.
 	 */
     public Servlet getServlet(HttpRequest req) {
 
-		//Get the path element on which to search.
-		Path path = req.getParsedPath();
-		String pathElement = path.element(0);
-
 		//Make sure the user is authenticated if necessary.
 		if (requireAuthentication && (req.getUser() == null)) {
 			if ((req.getHeader("servicemanager") == null)
-				|| (path.length() != 1)
-					|| !pathElement.equals("shutdown")
-						|| !req.isFromLocalHost()) {
-				return new LoginServlet(root, "");
+				|| !req.path.equals("/shutdown")
+					|| !req.isFromLocalHost()) {
+				req.setRoute("", 0);
+				return loginServlet;
 			}
 		}
 
-
 		//Okay, it is permissable to serve this request.
-		//Find a matching servlet.
-		Class<? extends Servlet> servlet = servlets.get(pathElement);
-		if (servlet != null) {
-			//A matching servlet was found, instantiate it.
-			Class[] signature = { File.class, String.class };
-			Object[] args = { root, pathElement };
-			try { return servlet.getConstructor(signature).newInstance(args); }
+		//Walk the routing trie one path element at a time,
+		//keeping the deepest route which accepts the method.
+		String path = req.path;
+		String method = req.method;
+		int length = path.length();
+		Node node = routes;
+		Route route = (length <= 1) ? node.getRoute(method) : null;
+		int subPathStart = 0;
+		int start = path.startsWith("/") ? 1 : 0;
+		while (start < length) {
+			int end = path.indexOf('/', start);
+			if (end < 0) end = length;
+			node = node.getChild(path, start, end - start);
+			if (node == null) break;
+			Route r = node.getRoute(method);
+			if (r != null) {
+				route = r;
+				subPathStart = end;
+			}
+			start = end + 1;
+		}
+
+		if (route != null) {
+			try {
+				Servlet servlet = route.factory.getServlet();
+				if (servlet != null) {
+					req.setRoute(route.context, subPathStart);
+					return servlet;
+				}
+			}
 			catch (Exception ex) {
-				logger.warn("Unable to instantiate "+servlet.getName());
+				logger.warn("Unable to get the servlet for "+route.context, ex);
 			}
 		}
-		//No matching servlet could be instantiated;
-		//return an instance of the Servlet base class.
-		return new Servlet(root, "");
+		//No matching servlet could be obtained;
+		//return the instance of the Servlet base class.
+		req.setRoute("", 0);
+		return defaultServlet;
 	}
 
 	/**
 	 * Execute the destroy method calls for all servlets. This method
 	 * tells servlets to clean up before the server shuts down.
 	 */
-    public void shutdown() {
-		Class[] signature = { File.class, String.class };
-		for (String path : servlets.keySet()) {
-			Class<? extends Servlet> cl = servlets.get(path);
+    public synchronized void shutdown() {
+		LinkedList<Route> list = new LinkedList<Route>();
+		routes.listRoutes(list);
+		for (Route route : list) {
 			try {
-				Object[] args = { root, path };
-				Servlet servlet = cl.getConstructor(signature).newInstance(args);
+				Servlet servlet = route.factory.getServlet();
 				servlet.destroy();
 			}
 			catch (Exception skip) {
-				logger.warn("Unable to destroy the servlet "+cl.getName());
+				logger.warn("Unable to destroy the servlet for "+route.context);
 			}
 		}
 	}
@@ -142,4 +220,123 @@ public class ServletSelector {
 		return root;
 	}
 
+	//A node in the routing trie, corresponding to one path element.
+	//The arrays are replaced rather than modified when servlets are
+	//added, so requests can be routed without locking.
+	static class Node {
+		final String name;
+		volatile Node[] children = new Node[0];
+		volatile Route[] routes = new Route[0];
+
+		Node(String name) {
+			this.name = name;
+		}
+
+		//Find the child whose name matches a region of the path.
+		Node getChild(String path, int start, int length) {
+			for (Node child : children) {
+				if ((child.name.length() == length) && path.startsWith(child.name, start)) return child;
+			}
+			return null;
+		}
+
+		//Get the first route which accepts the method.
+		Route getRoute(String method) {
+			for (Route route : routes) {
+				if (route.accepts(method)) return route;
+			}
+			return null;
+		}
+
+		//Get the named child, creating it if necessary.
+		Node addChild(String name) {
+			for (Node child : children) {
+				if (child.name.equals(name)) return child;
+			}
+			Node child = new Node(name);
+			Node[] newChildren = Arrays.copyOf(children, children.length + 1);
+			newChildren[children.length] = child;
+			children = newChildren;
+			return child;
+		}
+
+		//Add a route, replacing any route for the same methods, and keeping
+		//the routes for specific methods ahead of the route for all methods.
+		//Return true if a route was replaced.
+		boolean addRoute(Route route) {
+			LinkedList<Route> list = new LinkedList<Route>();
+			boolean replaced = false;
+			for (Route r : routes) {
+				if (Arrays.equals(r.methods, route.methods)) replaced = true;
+				else list.add(r);
+			}
+			if (route.methods != null) list.addFirst(route);
+			else list.addLast(route);
+			routes = list.toArray(new Route[list.size()]);
+			return replaced;
+		}
+
+		void listRoutes(LinkedList<Route> list) {
+			list.addAll(Arrays.asList(routes));
+			for (Node child : children) child.listRoutes(list);
+		}
+	}
+
+	//A servlet installed on a context, optionally limited to certain methods.
+	static class Route {
+		final String context;
+		final ServletFactory factory;
+		final String[] methods;
+
+		Route(String context, ServletFactory factory, String[] methods) {
+			this.context = context;
+			this.factory = factory;
+			if ((methods == null) || (methods.length == 0)) this.methods = null;
+			else {
+				this.methods = new String[methods.length];
+				for (int i=0; i<methods.length; i++) this.methods[i] = methods[i].toUpperCase();
+				Arrays.sort(this.methods);
+			}
+		}
+
+		boolean accepts(String method) {
+			if (methods == null) return true;
+			for (String m : methods) {
+				if (m.equals(method)) return true;
+			}
+			return false;
+		}
+	}
+
+	//A factory which instantiates a servlet class for each request through a
+	//MethodHandle bound to the servlet's root and context, so the constructor
+	//is only looked up once.
+	static class ConstructorFactory implements ServletFactory {
+		final MethodHandle constructor;
+
+		ConstructorFactory(Class<? extends Servlet> servlet, File root, String path) throws Exception {
+			MethodHandle mh = MethodHandles.publicLookup().findConstructor(servlet, constructorType);
+			constructor = MethodHandles.insertArguments(mh, 0, root, path).asType(factoryType);
+		}
+
+		public Servlet getServlet() throws Exception {
+			try { return (Servlet)constructor.invokeExact(); }
+			catch (Exception ex) { throw ex; }
+			catch (Throwable t) { throw new Exception(t); }
+		}
+	}
+
+	//A factory which supplies the same instance for every request.
+	static class SingletonFactory implements ServletFactory {
+		final Servlet servlet;
+
+		SingletonFactory(Servlet servlet) {
+			this.servlet = servlet;
+		}
+
+		public Servlet getServlet() {
+			return servlet;
+		}
+	}
+
 }
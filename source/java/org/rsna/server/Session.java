@@ -7,14 +7,15 @@
 
 package org.rsna.server;
 
-import java.math.BigInteger;
-import java.security.*;
+import java.security.MessageDigest;
+import org.rsna.util.DigestUtil;
+import org.rsna.util.FileUtil;
 
 /**
  * Class to encapsulate a session.
  */
 public class Session implements Comparable<Session> {
-	public long lastAccess;
+	public volatile long lastAccess;
 	public final User user;
 	public final String ipAddress;
 	public final String id;
@@ -57,9 +58,8 @@ public class Session implements Comparable<Session> {
 	//Make a session ID by hashing the username, the IP address and the current time.
 	private String getSessionID(String username, String ipAddress) throws Exception {
 		String string = username + ":" + ipAddress + ":" + System.currentTimeMillis();
-		MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-		byte[] hashed = messageDigest.digest(string.getBytes("UTF-8"));
-		BigInteger bi = new BigInteger(1, hashed);
-		return bi.toString();
+		MessageDigest messageDigest = DigestUtil.getMessageDigest("MD5");
+		byte[] hashed = messageDigest.digest(string.getBytes(FileUtil.utf8));
+		return DigestUtil.toDecimal(hashed);
 	}
 }
@@ -11,7 +11,7 @@ import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.log4j.Logger;
-import org.rsna.util.LdapUtil;
+import org.rsna.util.LdapConnectionPool;
 import org.rsna.util.StringUtil;
 import org.rsna.util.XmlUtil;
 import org.w3c.dom.Element;
@@ -31,6 +31,7 @@ public class UsersLdapFileImpl extends UsersXmlFileImpl {
 	String[] securityPrincipals;
 	String referral = "ignore";
 	String derefAliases = "never";
+	LdapConnectionPool pool = null;
 
 	/**
 	 * Constructor.
@@ -68,6 +69,15 @@ public class UsersLdapFileImpl extends UsersXmlFileImpl {
 			referral =ldap.getAttribute("referral");
 			derefAliases = ldap.getAttribute("derefAliases");
 
+			int maxConnections = StringUtil.getInt(ldap.getAttribute("maxConnections"), 8);
+			pool = new LdapConnectionPool(
+							initialContextFactory,
+							providerURL,
+							securityAuthentication,
+							referral,
+							derefAliases,
+							maxConnections);
+
 			//Make sure we have an admin user who is known to LDAP
 			String ldapAdmin = ldap.getAttribute("ldapAdmin").trim();
 			if (!ldapAdmin.equals("")) {
@@ -83,10 +93,20 @@ public class UsersLdapFileImpl extends UsersXmlFileImpl {
 		else logger.warn("Missing LDAP element - no parameters are available for initialization");
 	}
 
+	/**
+	 * Get the pool of connections to the LDAP server.
+	 * @return the pool, or null if the LDAP parameters were not supplied.
+	 */
+	public LdapConnectionPool getConnectionPool() {
+		return pool;
+	}
+
 	/**
 	 * Check whether a set of credentials match a user in the system.
 	 * To be authenticated, a user must appear in the users.xml file
-	 * <b>and</b> the user's credentials must be accepted by the LDAP server.
+	 * <b>and</b> the user's credentials must be accepted by the LDAP server
+	 * for at least one of the securityPrincipals. If there are multiple
+	 * securityPrincipals, they are tried in order until one succeeds.
 	 * @return true if the credentials match a user; false otherwise.
 	 */
 	public User authenticate(String username, String password) {
@@ -94,30 +114,29 @@ public class UsersLdapFileImpl extends UsersXmlFileImpl {
 		User user = getUser(username);
 		if (user != null) {
 
+			if (pool == null) {
+				logger.debug("No LDAP parameters are available to authenticate user \""+username+"\".");
+				return null;
+			}
+
 			Properties props = new Properties();
 			props.setProperty( "username", username );
-			for (String securityPrincipal : securityPrincipals) {
-				String principal = StringUtil.replace( securityPrincipal, props );
+			String[] principals = new String[securityPrincipals.length];
+			for (int i=0; i<securityPrincipals.length; i++) {
+				principals[i] = StringUtil.replace( securityPrincipals[i], props );
 				if (logger.isDebugEnabled()) {
-					logger.debug("securityPrincipal: \""+securityPrincipal+"\"");
+					logger.debug("securityPrincipal: \""+securityPrincipals[i]+"\"");
 					logger.debug("username:          \""+username+"\"");
-					logger.debug("principal:         \""+principal+"\"");
+					logger.debug("principal:         \""+principals[i]+"\"");
 				}
+			}
 
-				if ( LdapUtil.authenticate(
-								initialContextFactory,
-								providerURL,
-								securityAuthentication,
-								principal,
-								password,
-								referral,
-								derefAliases) ) {
-					if (logger.isDebugEnabled()) {
-						String xml = XmlUtil.toPrettyString(user.getXML(false)); //don't log the password
-						logger.debug("LDAP has authenticated user \""+username+"\"\n"+xml);
-					}
-					return user;
+			if (pool.authenticate(principals, password)) {
+				if (logger.isDebugEnabled()) {
+					String xml = XmlUtil.toPrettyString(user.getXML(false)); //don't log the password
+					logger.debug("LDAP has authenticated user \""+username+"\"\n"+xml);
 				}
+				return user;
 			}
 			logger.debug("LDAP failed to authenticate user \""+username+"\".");
 			return null;
@@ -126,4 +145,4 @@ public class UsersLdapFileImpl extends UsersXmlFileImpl {
 		logger.debug("Unable to find user \""+username+"\" in the users.xml file.");
 		return null;
 	}
-}
\ No newline at end of file
+}
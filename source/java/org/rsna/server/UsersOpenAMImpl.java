@@ -9,8 +9,15 @@ package org.rsna.server;
 
 import java.net.URI;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
 import org.apache.log4j.Logger;
 import org.rsna.util.OpenAMUtil;
 import org.rsna.util.StringUtil;
@@ -28,6 +35,10 @@ public class UsersOpenAMImpl extends Users {
 
 	volatile String openAMURL = "";
 	volatile String ssoCookieName = "";
+	volatile long tokenTTL = 60 * 1000; //time to keep a valid token's user, in ms
+	volatile long invalidTokenTTL = 10 * 1000; //time to remember an invalid token, in ms
+	final int maxTokens = 10000;
+	final ConcurrentHashMap<String,TokenEntry> tokens = new ConcurrentHashMap<String,TokenEntry>();
 
 	/**
 	 * Constructor.
@@ -48,18 +59,84 @@ public class UsersOpenAMImpl extends Users {
 			}
 			if (url == null) logger.warn("Invalid openAMURL attribute");
 			else logger.info("OpenAM URL: "+url);
+			tokenTTL = StringUtil.getLong(openAM.getAttribute("tokenTTL"), 60) * 1000;
+			invalidTokenTTL = StringUtil.getLong(openAM.getAttribute("invalidTokenTTL"), 10) * 1000;
 		}
 		else logger.warn("Missing OpenAM element - no parameters are available for initialization");
 	}
 
 	/**
 	 * Check whether a request comes from a user known to the OpenAM system.
+	 * The results of validating a token are cached, and concurrent requests
+	 * with the same token share a single call to the OpenAM server.
 	 * @return the user who matches the credentials, or null if no matching user exists.
 	 */
 	public User validate(HttpRequest req) {
 		String token = req.getCookie(ssoCookieName);
+		if (token == null) return null;
+		long now = System.currentTimeMillis();
+		TokenEntry entry = tokens.get(token);
+		if ((entry == null) || (entry.expires <= now)) {
+			TokenEntry newEntry = new TokenEntry(token);
+			boolean added = (entry == null) ? (tokens.putIfAbsent(token, newEntry) == null)
+											: tokens.replace(token, entry, newEntry);
+			if (!added) {
+				//Another thread has started a validation; wait for it.
+				entry = tokens.get(token);
+			}
+			if (added || (entry == null)) {
+				entry = newEntry;
+				entry.run();
+				if (tokens.size() > maxTokens) removeExpiredTokens();
+			}
+		}
+		try { return entry.get(); }
+		catch (Exception ex) {
+			logger.debug("Unable to validate an SSO token", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Remove all the cached token validations.
+	 */
+	public void clearTokenCache() {
+		tokens.clear();
+	}
+
+	//Remove the expired tokens and, if the cache is still full, enough of
+	//the oldest completed validations to leave room for new ones.
+	//Validations in progress are never removed.
+	private synchronized void removeExpiredTokens() {
+		long now = System.currentTimeMillis();
+		Iterator<TokenEntry> it = tokens.values().iterator();
+		while (it.hasNext()) {
+			TokenEntry entry = it.next();
+			if (entry.isDone() && (entry.expires <= now)) it.remove();
+		}
+		int excess = tokens.size() - (maxTokens - maxTokens / 16);
+		if (excess <= 0) return;
+		LinkedList<Map.Entry<String,TokenEntry>> done = new LinkedList<Map.Entry<String,TokenEntry>>();
+		for (Map.Entry<String,TokenEntry> e : tokens.entrySet()) {
+			if (e.getValue().isDone()) done.add(e);
+		}
+		Collections.sort(done,
+			new Comparator<Map.Entry<String,TokenEntry>>() {
+				public int compare(Map.Entry<String,TokenEntry> a, Map.Entry<String,TokenEntry> b) {
+					return Long.compare(a.getValue().completed, b.getValue().completed);
+				}
+			}
+		);
+		for (Map.Entry<String,TokenEntry> e : done) {
+			if (excess-- <= 0) break;
+			tokens.remove(e.getKey(), e.getValue());
+		}
+	}
+
+	//Validate a token with the OpenAM server and get the user's attributes.
+	private User getUserForToken(String token) {
 		boolean isValid = OpenAMUtil.validate(openAMURL, token);
-		logger.debug("Validating \""+token+"\";  result = "+isValid);
+		logger.debug("SSO token validation result = "+isValid);
 		if (isValid) {
 			String attributes = OpenAMUtil.getAttributes(openAMURL, token);
 			logger.debug("Attributes:\n"+attributes);
@@ -84,6 +161,30 @@ public class UsersOpenAMImpl extends Users {
 		return null;
 	}
 
+	//A cached validation of a token. The validation is done by the first
+	//thread to request it; other threads wait for the result. The entry
+	//expires after the TTL, which starts when the validation is complete.
+	class TokenEntry extends FutureTask<User> {
+		volatile long expires = Long.MAX_VALUE;
+		volatile long completed = 0;
+
+		TokenEntry(final String token) {
+			super(new Callable<User>() {
+				public User call() {
+					return getUserForToken(token);
+				}
+			});
+		}
+
+		protected void done() {
+			User user = null;
+			try { user = get(); }
+			catch (Exception ignore) { }
+			completed = System.currentTimeMillis();
+			expires = completed + ((user != null) ? tokenTTL : invalidTokenTTL);
+		}
+	}
+
 	/**
 	 * Get the URL of the OpenAM system's login servlet.
 	 * @return the URL of the OpenAM system's login servlet.
@@ -115,11 +216,16 @@ public class UsersOpenAMImpl extends Users {
 	 */
 	public String getSSOCookieName() {
 		if (ssoCookieName.equals("")) {
-			ssoCookieName = OpenAMUtil.getCookieName(openAMURL);			
-			if (!ssoCookieName.equals("")) {
-				logger.info("OpenAM SSO cookie name: "+ssoCookieName);
+			//Only one thread at a time asks the server for the name.
+			synchronized (this) {
+				if (ssoCookieName.equals("")) {
+					ssoCookieName = OpenAMUtil.getCookieName(openAMURL);
+					if (!ssoCookieName.equals("")) {
+						logger.info("OpenAM SSO cookie name: "+ssoCookieName);
+					}
+					else logger.warn("Unable to obtain the SSO cookie name");
+				}
 			}
-			else logger.warn("Unable to obtain the SSO cookie name");
 		}
 		return ssoCookieName;
 	}
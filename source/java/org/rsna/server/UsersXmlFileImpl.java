@@ -7,61 +7,125 @@
 
 package org.rsna.server;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.Map;
 import org.apache.log4j.Logger;
-import org.rsna.util.DigestUtil;
 import org.rsna.util.FileUtil;
+import org.rsna.util.PasswordHash;
+import org.rsna.util.StringUtil;
 import org.rsna.util.XmlUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * A class to extend the org.rsna.server.Users abstract class
  * for managing the users.xml file. This file is located in the root
  * of the application.
+ * <p>
+ * The users are held in an immutable directory which is replaced, not
+ * modified, when users are changed, so lookups and authentications never
+ * wait for a change. Each change is appended to a journal file
+ * (users.journal) before the new directory is installed, and a background
+ * thread periodically compacts the journal into the users.xml file. When
+ * the class is instantiated, any journal left by an earlier instance is
+ * applied to the users from the users.xml file. Call shutdown to stop the
+ * background thread and write any changes which have not been compacted.
  */
 public class UsersXmlFileImpl extends Users {
 
 	static final Logger logger = Logger.getLogger(UsersXmlFileImpl.class);
 
 	static String usersFileName = "users.xml";
+	static String journalFileName = "users.journal";
+	static String oldJournalFileName = "users.journal.old";
+	static final int maxJournalRecords = 200; //records which force a compaction
+	static final long compactionDelay = 10 * 1000; //longest time a record waits for compaction, in ms
+
 	File usersFile = null;
-	Hashtable<String,User> users = null;
+	File journalFile = null;
+	File oldJournalFile = null;
+	volatile Directory directory = new Directory(new HashMap<String,User>());
 	HashSet<String> roles = null;
 
+	//The state of the journal, guarded by the writeLock.
+	final Object writeLock = new Object();
+	Writer journal = null;
+	int journalRecords = 0;
+	long firstRecordTime = 0;
+	boolean loaded = false;
+
+	//Serializes the compactions, which write the users.xml
+	//file without holding the writeLock.
+	final Object compactLock = new Object();
+	Compactor compactor = null;
+
 	/**
 	 * Constructor.
-	 * @param element ignored in this implementation of the Users class.
+	 * @param element the Server element from the configuration. The optional
+	 * passwordHash attribute selects the scheme used to hash new passwords
+	 * ("pbkdf2", the default, or "md5"), and the optional passwordHashCost
+	 * attribute sets the number of iterations for the pbkdf2 scheme.
+	 * Passwords stored with another scheme or cost are rehashed when the
+	 * users next authenticate.
 	 */
 	public UsersXmlFileImpl(Element element) {
+		//Set the password hash scheme.
+		if (element != null) {
+			String scheme = element.getAttribute("passwordHash").trim();
+			int cost = StringUtil.getInt(element.getAttribute("passwordHashCost"), 0);
+			if (!scheme.equals("") || (cost > 0)) {
+				if (scheme.equals("")) scheme = PasswordHash.getDefaultScheme().getName();
+				PasswordHash.setDefaultScheme(scheme, cost);
+			}
+		}
+
 		//Load the roles table.
 		roles = new HashSet<String>();
 
 		//Load the users table from the XML file, creating
-		//an empty XML file if it does not exist.
+		//an empty XML file if it does not exist, and apply
+		//the journal of changes.
 		usersFile = new File(usersFileName);
+		File dir = usersFile.getAbsoluteFile().getParentFile();
+		journalFile = new File(dir, journalFileName);
+		oldJournalFile = new File(dir, oldJournalFileName);
 		if (!usersFile.exists()) FileUtil.setText(usersFile, getEmptyUsersText());
-		users = getUsers();
+		loadUsers();
+
+		compactor = new Compactor();
+		compactor.start();
 	}
 
-	//Get all the User objects in a Hashtable indexed by username.
-	//This method converts the file to digest mode if it is not
-	private synchronized Hashtable<String,User> getUsers() {
-		Hashtable<String,User> hashtable = new Hashtable<String,User>();
+	//Load the users from the XML file and apply the journals of changes
+	//made since the file was last written. This method converts the file
+	//to digest mode if it is not, and compacts the journal if it is not empty.
+	//If the file cannot be parsed, it is not overwritten.
+	private void loadUsers() {
+		HashMap<String,User> table = new HashMap<String,User>();
 
 		Document usersXML;
 		try { usersXML = XmlUtil.getDocument(usersFile); }
 		catch (Exception ex) {
 			logger.warn("Unable to parse the users file: "+usersFile);
-			return hashtable;
+			replayJournal(table, oldJournalFile);
+			replayJournal(table, journalFile);
+			directory = new Directory(table);
+			return;
 		}
 
 		Element root = usersXML.getDocumentElement();
@@ -69,44 +133,87 @@ public class UsersXmlFileImpl extends Users {
 		Node userChild = root.getFirstChild();
 		while (userChild != null) {
 			if ((userChild instanceof Element) && userChild.getNodeName().equals("user")) {
-				Element userElement = (Element)userChild;
-				String username = userElement.getAttribute("username");
-				String password = userElement.getAttribute("password");
-				if (!isHashed) password = convertPassword(password);
-				User user = new User(username, password);
-				Node roleChild = userElement.getFirstChild();
-				while (roleChild != null) {
-					if ((roleChild instanceof Element) && roleChild.getNodeName().equals("role")) {
-						user.addRole(roleChild.getTextContent());
-					}
-					roleChild = roleChild.getNextSibling();
-				}
-				hashtable.put(username,user);
+				User user = getUser((Element)userChild, isHashed);
+				table.put(user.getUsername(), user);
 			}
 			userChild = userChild.getNextSibling();
 		}
-		if (!isHashed) resetUsers(hashtable);
-		return hashtable;
+		replayJournal(table, oldJournalFile);
+		replayJournal(table, journalFile);
+		directory = new Directory(table);
+		synchronized (writeLock) {
+			loaded = true;
+		}
+		if (!isHashed || journalFile.exists() || oldJournalFile.exists()) compact();
+	}
+
+	//Make a User from a user element.
+	private User getUser(Element userElement, boolean isHashed) {
+		String username = userElement.getAttribute("username");
+		String password = userElement.getAttribute("password");
+		if (!isHashed) password = convertPassword(password);
+		User user = new User(username, password);
+		Node roleChild = userElement.getFirstChild();
+		while (roleChild != null) {
+			if ((roleChild instanceof Element) && roleChild.getNodeName().equals("role")) {
+				user.addRole(roleChild.getTextContent());
+			}
+			roleChild = roleChild.getNextSibling();
+		}
+		return user;
+	}
+
+	//Apply the records in a journal to a table of users,
+	//returning the number of records applied. A record which
+	//cannot be parsed (a record which was partially written
+	//when the program stopped) is skipped.
+	private int replayJournal(HashMap<String,User> table, File file) {
+		if (!file.exists()) return 0;
+		int count = 0;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(
+						new InputStreamReader(
+							new FileInputStream(file), FileUtil.utf8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().equals("")) continue;
+				Element record;
+				try { record = XmlUtil.getDocument(line).getDocumentElement(); }
+				catch (Exception ex) {
+					logger.warn("Unparsable record in "+file+": "+line);
+					continue;
+				}
+				String name = record.getTagName();
+				if (name.equals("reset")) table.clear();
+				else if (name.equals("user")) {
+					User user = getUser(record, true);
+					table.put(user.getUsername(), user);
+				}
+				else if (name.equals("remove")) table.remove(record.getAttribute("username"));
+				count++;
+			}
+			logger.info(count+" records from "+file+" applied to the users from "+usersFile);
+		}
+		catch (Exception ex) { logger.warn("Unable to read "+file, ex); }
+		finally { FileUtil.close(reader); }
+		return count;
 	}
 
 	/**
-	 * Get all the usernames in an alphabetized array.
-	 * @return the array of usernames or a zero-length array if unable.
+	 * Get the number of users.
+	 * @return the number of users.
 	 */
-	public synchronized int getNumberOfUsers() {
-		return users.size();
+	public int getNumberOfUsers() {
+		return directory.users.size();
 	}
 
 	/**
 	 * Get all the usernames in an alphabetized array.
 	 * @return the array of usernames or a zero-length array if unable.
 	 */
-	public synchronized String[] getUsernames() {
-		if (users == null) return new String[0];
-		String[] usernames = new String[users.size()];
-		usernames = users.keySet().toArray(usernames);
-		Arrays.sort(usernames);
-		return usernames;
+	public String[] getUsernames() {
+		return directory.usernames.clone();
 	}
 
 	/**
@@ -115,7 +222,7 @@ public class UsersXmlFileImpl extends Users {
 	 * @return the converted password.
 	 */
 	public String convertPassword(String password) {
-		return DigestUtil.hash(password);
+		return PasswordHash.hash(password);
 	}
 
 	/**
@@ -139,10 +246,9 @@ public class UsersXmlFileImpl extends Users {
 	 * @return the HashSet of role names or null if unable.
 	 */
 	public synchronized HashSet<String> getRoles() {
-		if (users == null) return null;
 		//Put in all the roles from the table,
 		//just in case somebody has created new roles.
-		for (User user : users.values()) {
+		for (User user : directory.users.values()) {
 			roles.addAll(user.getRoles());
 		}
 		return roles;
@@ -162,12 +268,18 @@ public class UsersXmlFileImpl extends Users {
 	}
 
 	/**
-	 * Reset the database of users.
+	 * Reset the database of users. The change is journaled
+	 * and the users.xml file is rewritten in the background.
 	 * @param users the table of users to put in the database.
 	 */
-	public synchronized void resetUsers(Hashtable<String,User> users) {
-		this.users = users;
-		FileUtil.setText(usersFile, getUsersText());
+	public void resetUsers(Hashtable<String,User> users) {
+		synchronized (writeLock) {
+			StringBuffer sb = new StringBuffer("<reset/>\n");
+			for (User user : users.values()) sb.append(getRecord(user));
+			appendToJournal(sb.toString(), users.size() + 1);
+			directory = new Directory(users);
+		}
+		Authenticator.getInstance().getCredentialCache().clear();
 	}
 
 	/**
@@ -175,8 +287,8 @@ public class UsersXmlFileImpl extends Users {
 	 * @param username the username
 	 * @return the user or null if unable.
 	 */
-	public synchronized User getUser(String username) {
-		return users.get(username);
+	public User getUser(String username) {
+		return directory.users.get(username);
 	}
 
 	/**
@@ -193,6 +305,8 @@ public class UsersXmlFileImpl extends Users {
 
 	/**
 	 * Check whether a set of credentials match a user in the system.
+	 * If the user's password was hashed with an earlier scheme or
+	 * cost, it is rehashed with the current scheme.
 	 * @param username the username in plaintext.
 	 * @param password the password in plaintext.
 	 * @return true if the credentials match a user; false otherwise.
@@ -200,49 +314,101 @@ public class UsersXmlFileImpl extends Users {
 	public User authenticate(String username, String password) {
 		User user = getUser(username);
 		if (user != null) {
-			String pw = convertPassword(password);
-			if (user.getPassword().equals(pw)) return user;
+			String hash = user.getPassword();
+			if (PasswordHash.verify(password, hash)) {
+				if (PasswordHash.needsUpgrade(hash)) {
+					//The user is in the published directory,
+					//so the new hash is set in a copy.
+					User rehashed = new User(username, convertPassword(password));
+					for (String role : user.getRoles()) rehashed.addRole(role);
+					addUser(rehashed);
+					logger.debug("Rehashed the password for \""+username+"\"");
+					return rehashed;
+				}
+				return user;
+			}
 		}
 		return null;
 	}
 
 	/**
 	 * Add a user to the database or update the user if it exists.
-	 * This method always updates the users.xml file.
+	 * The change is journaled and the users.xml file is rewritten
+	 * in the background.
 	 * @param user the user to add or update.
 	 */
-	public synchronized void addUser(User user) {
-		if ((user != null) && (users != null)) {
-			users.put(user.getUsername(), user);
-			FileUtil.setText(usersFile, getUsersText());
+	public void addUser(User user) {
+		if (user != null) {
+			synchronized (writeLock) {
+				appendToJournal(getRecord(user), 1);
+				HashMap<String,User> table = new HashMap<String,User>(directory.users);
+				table.put(user.getUsername(), user);
+				directory = new Directory(table);
+			}
+			Authenticator.getInstance().getCredentialCache().invalidate(user.getUsername());
 		}
 	}
 
 	/**
-	 * Remove a user from the database and update the users.xml file.
+	 * Remove a user from the database. The change is journaled
+	 * and the users.xml file is rewritten in the background.
 	 * @param username the user to remove.
 	 */
-	public synchronized void removeUser(String username) {
-		if ((username != null) && (users != null)) {
-			if (users.remove(username) != null) {
-				FileUtil.setText(usersFile, getUsersText());
+	public void removeUser(String username) {
+		if (username != null) {
+			synchronized (writeLock) {
+				if (!directory.users.containsKey(username)) return;
+				appendToJournal("<remove username=\""+XmlUtil.escapeChars(username)+"\"/>\n", 1);
+				HashMap<String,User> table = new HashMap<String,User>(directory.users);
+				table.remove(username);
+				directory = new Directory(table);
 			}
+			Authenticator.getInstance().getCredentialCache().invalidate(username);
 		}
 	}
 
+	/**
+	 * Write the users.xml file now if there are journaled changes
+	 * which have not been written.
+	 */
+	public void flush() {
+		int records;
+		synchronized (writeLock) {
+			records = journalRecords;
+		}
+		if (records > 0) compact();
+	}
+
+	/**
+	 * Stop the thread which compacts the journal, and write the users.xml
+	 * file if there are journaled changes which have not been written.
+	 * Changes made after this method is called are journaled, but they are
+	 * only written to the users.xml file by flush or by the next instance.
+	 */
+	public void shutdown() {
+		compactor.interrupt();
+		try { compactor.join(); }
+		catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+		flush();
+	}
+
 	/**
 	 * Get the users in an XML Document.
 	 * @return the XML Document containing all the users
 	 */
 	public Document getXML() {
+		return getXML(directory);
+	}
+
+	//Get the users in a directory in an XML Document.
+	private Document getXML(Directory dir) {
 		try {
 			Document doc = XmlUtil.getDocument();
 			Element root = doc.createElement("users");
 			root.setAttribute("mode", "digest");
 			doc.appendChild(root);
-			String[] names = getUsernames();
-			for (String name : names) {
-				User user = users.get(name);
+			for (String name : dir.usernames) {
+				User user = dir.users.get(name);
 				Element userElement = doc.createElement("user");
 				root.appendChild(userElement);
 				userElement.setAttribute("username", user.getUsername());
@@ -258,8 +424,98 @@ public class UsersXmlFileImpl extends Users {
 		catch (Exception ex) { return null; }
 	}
 
-	private String getUsersText() {
-		return XmlUtil.toPrettyString(getXML());
+	private String getUsersText(Directory dir) {
+		return XmlUtil.toPrettyString(getXML(dir));
+	}
+
+	//Make the journal record for a user, on a single line.
+	private String getRecord(User user) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<user username=\""+XmlUtil.escapeChars(user.getUsername())+"\"");
+		sb.append(" password=\""+XmlUtil.escapeChars(user.getPassword())+"\">");
+		for (String role : user.getRoles()) {
+			sb.append("<role>"+XmlUtil.escapeChars(role)+"</role>");
+		}
+		sb.append("</user>\n");
+		return sb.toString();
+	}
+
+	//Append records to the journal, opening it if necessary, and wake
+	//the compactor. This method must be called while holding the writeLock.
+	//When an existing journal is opened, a newline is written first in case
+	//its last record is incomplete.
+	private void appendToJournal(String records, int count) {
+		try {
+			if (journal == null) {
+				boolean exists = (journalFile.length() > 0);
+				journal = new BufferedWriter(
+								new OutputStreamWriter(
+									new FileOutputStream(journalFile, true), FileUtil.utf8));
+				if (exists) journal.write("\n");
+			}
+			journal.write(records);
+			journal.flush();
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to write to "+journalFile, ex);
+			FileUtil.close(journal);
+			journal = null;
+		}
+		if (journalRecords == 0) firstRecordTime = System.currentTimeMillis();
+		journalRecords += count;
+		writeLock.notifyAll();
+	}
+
+	//Write a snapshot of the directory to the users.xml file and delete the
+	//journal records it contains, returning true if the file was written.
+	//The snapshot is taken and the journal is set aside as users.journal.old
+	//while holding the writeLock, but the file is written without it, so
+	//changes are not held up by the write; they go to a new journal. The file
+	//is written to a temporary file and then moved into place, so a failure
+	//cannot leave a partial file. A journal is deleted only after a snapshot
+	//containing all its records has been written. If a journal set aside by
+	//a failed compaction is still present, the current journal is left in
+	//place; its records replace whole users, so replaying records which are
+	//already in the users.xml file does no harm.
+	private boolean compact() {
+		synchronized (compactLock) {
+			Directory snapshot;
+			int records;
+			synchronized (writeLock) {
+				if (!loaded) return false;
+				snapshot = directory;
+				records = journalRecords;
+				FileUtil.close(journal);
+				journal = null;
+				if (journalFile.exists() && !oldJournalFile.exists()) {
+					try { Files.move(journalFile.toPath(), oldJournalFile.toPath()); }
+					catch (Exception ex) { logger.debug("Unable to rename "+journalFile, ex); }
+				}
+				journalRecords = 0;
+			}
+			File temp = new File(usersFile.getAbsoluteFile().getParentFile(), usersFileName + ".tmp");
+			boolean ok = FileUtil.setText(temp, getUsersText(snapshot));
+			if (!ok) logger.warn("Unable to write "+temp);
+			else {
+				try { Files.move(temp.toPath(), usersFile.toPath(), StandardCopyOption.REPLACE_EXISTING); }
+				catch (Exception ex) {
+					logger.warn("Unable to replace "+usersFile, ex);
+					ok = false;
+				}
+			}
+			if (!ok) {
+				//The records are still in the journals;
+				//count them again so they are compacted later.
+				synchronized (writeLock) {
+					if (journalRecords == 0) firstRecordTime = System.currentTimeMillis();
+					journalRecords += records;
+				}
+				return false;
+			}
+			oldJournalFile.delete();
+			logger.debug("Compacted "+records+" journal records into "+usersFile);
+			return true;
+		}
 	}
 
 	private String getEmptyUsersText() {
@@ -290,4 +546,47 @@ public class UsersXmlFileImpl extends Users {
 		return sb.toString();
 	}
 
-}
\ No newline at end of file
+	//An immutable snapshot of the users, with the
+	//usernames in alphabetical order.
+	static class Directory {
+		final Map<String,User> users;
+		final String[] usernames;
+
+		Directory(Map<String,User> table) {
+			users = Collections.unmodifiableMap(new HashMap<String,User>(table));
+			usernames = users.keySet().toArray(new String[users.size()]);
+			Arrays.sort(usernames);
+		}
+	}
+
+	//A thread to compact the journal when it reaches maxJournalRecords
+	//or when its oldest record is compactionDelay old. The thread waits
+	//on the writeLock, but it compacts without holding it. It stops
+	//when it is interrupted.
+	class Compactor extends Thread {
+		public Compactor() {
+			super("UsersXmlFileImpl journal compactor");
+			setDaemon(true);
+		}
+		public void run() {
+			try {
+				while (true) {
+					synchronized (writeLock) {
+						while (true) {
+							if (journalRecords == 0) writeLock.wait();
+							else {
+								long wait = firstRecordTime + compactionDelay - System.currentTimeMillis();
+								if ((journalRecords >= maxJournalRecords) || (wait <= 0)) break;
+								writeLock.wait(wait);
+							}
+						}
+					}
+					//If the compaction fails, try again later.
+					if (!compact()) Thread.sleep(compactionDelay);
+				}
+			}
+			catch (InterruptedException quit) { }
+		}
+	}
+
+}
@@ -17,6 +17,7 @@ import javax.net.ssl.SSLServerSocketFactory;
 import org.apache.log4j.Logger;
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
+import org.rsna.util.VirtualThreadExecutor;
 
 /**
  * A Thread that implements a single HTTP Service.
@@ -25,9 +26,10 @@ public class HttpService extends Thread {
 
 	static final Logger logger = Logger.getLogger(HttpService.class);
 
-	final int maxThreads = 4; //max concurrent threads
+	final int maxThreads; //max concurrent threads
 	final ThreadPoolExecutor execSvc;
 	final LinkedBlockingQueue<Runnable> queue;
+	final VirtualThreadExecutor vtExec;
 	final ServerSocket serverSocket;
 	final boolean ssl;
 	final int port;
@@ -39,17 +41,32 @@ public class HttpService extends Thread {
 	}
 
     public HttpService(boolean ssl, int port, Service service, String name) throws Exception {
+		this(ssl, port, service, name, 4, false);
+	}
+
+	// Construct an HttpService with a limit on the number of connections
+	// serviced concurrently, optionally running each one on a virtual thread.
+    public HttpService(boolean ssl, int port, Service service, String name,
+					   int maxThreads, boolean virtualThreads) throws Exception {
 		super("HttpService");
 		this.ssl = ssl;
 		this.port = port;
 		this.service = service;
 		this.name = name;
-		
+		this.maxThreads = maxThreads;
+
 		queue = new LinkedBlockingQueue<Runnable>();
 		ServerSocketFactory serverSocketFactory =
 			ssl ? SSLServerSocketFactory.getDefault() : ServerSocketFactory.getDefault();
 		serverSocket = serverSocketFactory.createServerSocket(port); //use the default backlog of 50
-		execSvc = new ThreadPoolExecutor( maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue );
+		if (virtualThreads) {
+			vtExec = new VirtualThreadExecutor("HttpService", maxThreads);
+			execSvc = null;
+		}
+		else {
+			vtExec = null;
+			execSvc = new ThreadPoolExecutor( maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue );
+		}
 	}
 
 	// Start the HttpService and accept connections.
@@ -59,7 +76,8 @@ public class HttpService extends Thread {
 			try {
 				final Socket socket = serverSocket.accept();
 				Handler handler = new Handler(socket, service);
-				execSvc.execute( handler );
+				if (vtExec != null) vtExec.execute( handler );
+				else execSvc.execute( handler );
 			}
 			catch (Exception ex) { break; }
 		}
@@ -69,10 +87,21 @@ public class HttpService extends Thread {
 
 	// Stop the HttpReceiver.
 	public void stopServer() {
-		execSvc.shutdown();
+		if (vtExec != null) vtExec.shutdown();
+		else execSvc.shutdown();
 		this.interrupt();
 	}
 
+	// Get the number of connections currently being serviced.
+	public int getActiveThreads() {
+		return (vtExec != null) ? vtExec.getActiveCount() : execSvc.getActiveCount();
+	}
+
+	// Get the number of connections waiting to be serviced.
+	public int getQueuedThreads() {
+		return (vtExec != null) ? vtExec.getQueuedCount() : queue.size();
+	}
+
 	//Class to handle one connection and service the request.
 	class Handler extends Thread {
 
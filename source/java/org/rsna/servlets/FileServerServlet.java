@@ -9,6 +9,7 @@ package org.rsna.servlets;
 
 import java.io.File;
 import java.io.InputStream;
+import javax.xml.transform.dom.DOMSource;
 import org.apache.log4j.Logger;
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
@@ -60,18 +61,21 @@ public class FileServerServlet extends Servlet {
 			File dir = new File(root, context);
 			appendFiles(xmlRoot, dir, "/");
 			
+			res.setContentEncoding(req);
+			res.disableCaching();
 			if (req.hasParameter("xml")) {
 				res.write(XmlUtil.toString(xmlRoot));
 				res.setContentType("xml");
  			}
 			else {
+				//Stream the transformed page so the listing of a
+				//large directory tree is not held in memory.
+				res.setContentType("html");
+				res.setStreaming(req);
 				Document xsl = getDocument("FileServerServlet.xsl");
 				String[] params = new String[] { "home", home };
-				res.write( XmlUtil.getTransformedText( xml, xsl, params ) );
-				res.setContentType("html");
+				XmlUtil.transform( new DOMSource(xml), new DOMSource(xsl), params, res.getOutputStream() );
 			}
-			res.setContentEncoding(req);
-			res.disableCaching();
 			res.send();
 		}
 		else super.doGet(req, res);
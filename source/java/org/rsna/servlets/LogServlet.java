@@ -65,16 +65,17 @@ public class LogServlet extends Servlet {
 
 		//Get the page
 		if (req.hasParameter("suppress")) home = "";
-		String page;
-		if ((filename == null) || filename.trim().equals("") || filename.trim().equals("/"))
-			page = getDirectoryPage(dir, context, home);
-		else
-			page = getFilePage(new File(dir, filename.substring(filename.lastIndexOf("/")+1)));
-
-		//Send it out
 		res.disableCaching();
 		res.setContentType("html");
-		res.write(page);
+		if ((filename == null) || filename.trim().equals("") || filename.trim().equals("/")) {
+			res.write(getDirectoryPage(dir, context, home));
+		}
+		else {
+			//Log files can be large, so stream the file page
+			//rather than building it in memory.
+			res.setStreaming(req);
+			writeFilePage(new File(dir, filename.substring(filename.lastIndexOf("/")+1)), res);
+		}
 		res.send();
 	}
 
@@ -111,9 +112,22 @@ public class LogServlet extends Servlet {
 		return page.toString();
 	}
 
-	//Make a page displaying the contents of a file.
-	private String getFilePage(File file) {
-		return "<pre>" + StringUtil.displayable(FileUtil.getText(file)) + "</pre>";
+	//Write a page displaying the contents of a file, one block at a time.
+	private void writeFilePage(File file, HttpResponse res) {
+		res.write("<pre>");
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), FileUtil.utf8));
+			char[] cbuf = new char[8192];
+			int n;
+			while ((n = reader.read(cbuf, 0, cbuf.length)) != -1) {
+				res.write(StringUtil.displayable(new String(cbuf, 0, n)));
+				if (!res.flush()) break;
+			}
+		}
+		catch (Exception ignore) { }
+		finally { FileUtil.close(reader); }
+		res.write("</pre>");
 	}
 
 	private String responseHead(String home) {
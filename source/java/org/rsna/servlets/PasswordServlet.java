@@ -17,7 +17,6 @@ import org.rsna.server.User;
 import org.rsna.server.Users;
 import org.rsna.server.UsersXmlFileImpl;
 import org.rsna.util.FileUtil;
-import org.rsna.util.XmlUtil;
 
 /**
  * The PasswordServlet.
@@ -84,13 +83,14 @@ public class PasswordServlet extends Servlet {
 				Users users = Users.getInstance();
 				User user = req.getUser();
 				if (user != null) {
-					user.setPassword(pw1.trim());
+					//The user is shared by the Users instance,
+					//so the new password is set in a copy.
+					User changed = new User(user.getUsername(), users.convertPassword(pw1));
+					for (String role : user.getRoles()) changed.addRole(role);
+					Authenticator.getInstance().getCredentialCache().invalidate(user.getUsername());
 					if (users instanceof UsersXmlFileImpl) {
 						UsersXmlFileImpl uxml = (UsersXmlFileImpl)users;
-						uxml.addUser(user);
-						File usersXmlFile = new File("users.xml");
-						String usersString = XmlUtil.toString(uxml.getXML());
-						FileUtil.setText(usersXmlFile, usersString);
+						uxml.addUser(changed);
 					}
 					res.redirect("/");
 					return;
@@ -10,13 +10,15 @@ package org.rsna.servlets;
 import java.io.File;
 import org.rsna.server.*;
 import org.rsna.servlets.Servlet;
+import org.rsna.util.LdapConnectionPool;
 import org.rsna.util.StringUtil;
 
 /**
  * The ServerStatusServlet. This servlet returns the status of the
  * server, including the number of active threads currently
- * servicing requests, the size of the server thread pool, and
- * the number of requests waiting in the queue.
+ * servicing requests, the size of the server thread pool,
+ * the number of requests waiting in the queue, and the number
+ * of connections rejected because the queue was full.
  */
 public class ServerStatusServlet extends Servlet {
 
@@ -37,18 +39,25 @@ public class ServerStatusServlet extends Servlet {
 	public void doGet(HttpRequest req, HttpResponse res) {
 		if (req.userHasRole("admin")) {
 			Authenticator auth = Authenticator.getInstance();
-			auth.removeInactiveSessions();
 			HttpServer server = req.getServer();
 			int maxThreads = server.getMaxThreads();
 			int activeThreads = server.getActiveThreads();
 			int queuedThreads = server.getQueuedThreads();
-			int sessionCount = auth.getActiveSessionCount();
+			int maxQueued = server.getMaxQueuedConnections();
+			long rejected = server.getRejectedConnections();
+			Session[] sessions = auth.getActiveSessions();
+			int sessionCount = sessions.length;
 
 			StringBuffer sb = new StringBuffer();
 			sb.append( activeThreads + " of " + maxThreads + " server threads are currently active.\n"
 								+ queuedThreads + " thread"
 								+ ((queuedThreads == 1) ? " is" : "s are")
-								+ " waiting in the queue.\n"
+								+ " waiting in the queue"
+								+ ((maxQueued < Integer.MAX_VALUE) ? " (limit "+maxQueued+")" : "")
+								+ ".\n"
+								+ rejected + " connection"
+								+ ((rejected == 1) ? " has" : "s have")
+								+ " been rejected because the server was busy.\n"
 								+ sessionCount + " session"
 								+ ((sessionCount == 1) ? " is" : "s are")
 								+ " currently active" + ((sessionCount > 0) ? ":" : ".")
@@ -58,12 +67,18 @@ public class ServerStatusServlet extends Servlet {
 				sb.append( String.format("\n    %-10s  %s", "User name", "Last Access") );
 				sb.append( String.format("\n    %-10s  %s", "---------", "-----------") );
 			}
-			for (Session session : auth.getActiveSessions()) {
+			for (Session session : sessions) {
 				String n = session.user.getUsername();
 				String t = StringUtil.getTime(session.lastAccess, ":");
 				sb.append( String.format("\n    %-10s  %s", n, t) );
 			}
 
+			Users users = Users.getInstance();
+			if (users instanceof UsersLdapFileImpl) {
+				LdapConnectionPool pool = ((UsersLdapFileImpl)users).getConnectionPool();
+				if (pool != null) sb.append( "\n\nLDAP connections: " + pool.getStatus() + "\n" );
+			}
+
 			res.write(sb.toString());
 			res.setContentType("txt");
 			res.disableCaching();
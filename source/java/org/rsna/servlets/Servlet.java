@@ -94,7 +94,7 @@ public class Servlet {
 				res.setETag(fileLMDate);
 			}
 			else {
-				res.write(file);
+				res.write(file, req);
 				res.setLastModified(fileLMDate);
 				res.setETag(fileLMDate);
 			}
@@ -104,9 +104,16 @@ public class Servlet {
 			//If there is a cache. try to get the file from there.
 			Cache cache = Cache.getInstance();
 			if (cache != null) {
-				file = cache.getFile(req.path);
-				if (file != null) res.write(file);
-				else res.setResponseCode( res.notfound );
+				Cache.Resource resource = cache.getResource(req.path);
+				if (resource == null) res.setResponseCode( res.notfound );
+				else {
+					long clientLMDate = req.getConditionalTime();
+					if ((clientLMDate > 0) && (resource.getLastModified() <= clientLMDate)) {
+						res.setResponseCode( res.notmodified );
+						res.setHeader("ETag", resource.getETag());
+					}
+					else res.write(resource, req);
+				}
 			}
 			else {
 				//There is no cache, see if the file can
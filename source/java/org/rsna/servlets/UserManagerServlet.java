@@ -162,9 +162,16 @@ public class UserManagerServlet extends Servlet {
 		for (int i=0; i<nUsers; i++) {
 			String username = getValue(params,values,"u",i);
 			if (!username.equals("")) {
-				//Get the old user or create a new one if the old one doesn't exist.
+				//Get a copy of the old user or create a new one if the old one
+				//doesn't exist. The old user is shared by the Users instance,
+				//so the changes are made to the copy.
 				User user = usersXmlFileImpl.getUser(username);
 				if (user == null) user = new User(username, "");
+				else {
+					User copy = new User(username, user.getPassword());
+					for (String role : user.getRoles()) copy.addRole(role);
+					user = copy;
+				}
 
 				//(Only process existing users with the shutdown
 				//role if the current user has the shutdown role.)
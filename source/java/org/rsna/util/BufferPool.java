@@ -0,0 +1,85 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of byte arrays for copying streams, so that large
+ * buffers can be used without being allocated on every call.
+ * The pool is bounded; buffers released when it is full are
+ * left for the garbage collector. A separate pool supplies
+ * direct ByteBuffers for reading files through channels.
+ */
+public class BufferPool {
+
+	/** The size of the buffers supplied by the pool. */
+	public static final int bufferSize = 64 * 1024;
+
+	static final int maxPooledBuffers = 64;
+	static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+	static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+	/** The size of the direct buffers supplied by the pool. */
+	public static final int directBufferSize = 1024 * 1024;
+
+	static final int maxPooledDirectBuffers = 16;
+	static final ConcurrentLinkedQueue<ByteBuffer> directPool = new ConcurrentLinkedQueue<ByteBuffer>();
+	static final AtomicInteger pooledDirectBuffers = new AtomicInteger();
+
+	/**
+	 * Get a buffer from the pool, allocating one if the pool is empty.
+	 * The buffer should be returned with releaseBuffer when it is no
+	 * longer in use.
+	 * @return a byte array of length bufferSize.
+	 */
+	public static byte[] getBuffer() {
+		byte[] buffer = pool.poll();
+		if (buffer == null) return new byte[bufferSize];
+		pooledBuffers.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool. Arrays not obtained from
+	 * getBuffer are ignored, as is null.
+	 * @param buffer the buffer to return.
+	 */
+	public static void releaseBuffer(byte[] buffer) {
+		if ((buffer == null) || (buffer.length != bufferSize)) return;
+		if (pooledBuffers.incrementAndGet() <= maxPooledBuffers) pool.offer(buffer);
+		else pooledBuffers.decrementAndGet();
+	}
+
+	/**
+	 * Get a cleared direct buffer from the pool, allocating one if
+	 * the pool is empty. The buffer should be returned with
+	 * releaseDirectBuffer when it is no longer in use.
+	 * @return a direct ByteBuffer with capacity directBufferSize.
+	 */
+	public static ByteBuffer getDirectBuffer() {
+		ByteBuffer buffer = directPool.poll();
+		if (buffer == null) return ByteBuffer.allocateDirect(directBufferSize);
+		pooledDirectBuffers.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Return a direct buffer to the pool. Buffers not obtained
+	 * from getDirectBuffer are ignored, as is null.
+	 * @param buffer the buffer to return.
+	 */
+	public static void releaseDirectBuffer(ByteBuffer buffer) {
+		if ((buffer == null) || !buffer.isDirect() || (buffer.capacity() != directBufferSize)) return;
+		if (pooledDirectBuffers.incrementAndGet() <= maxPooledDirectBuffers) directPool.offer(buffer);
+		else pooledDirectBuffers.decrementAndGet();
+	}
+}
@@ -7,22 +7,60 @@
 
 package org.rsna.util;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Enumeration;
-import java.util.zip.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import org.apache.log4j.Logger;
 
 /**
  * A singleton cache for files that are served from the classpath jars.
+ * <p>
+ * The files are kept in a directory. Small files are also kept in memory,
+ * with their gzip-compressed contents and their HTTP validators, so that
+ * frequently requested resources can be served without reading the disk.
+ * The memory tier is bounded by the total size of its entries, and the
+ * least recently used entries are evicted when it is full. Each time a
+ * resource from the cache directory is served from memory, the last modified
+ * time and length of its file are checked, and the resource is reloaded if
+ * the file has changed. The memory tier is also cleared when files are
+ * loaded into the cache or the cache is cleared.
+ * <p>
+ * Instead of loading a zip file into the directory, a zip file can be added
+ * as an archive, which is mapped into memory and serves its entries without
+ * extracting them. Files in the directory take precedence over archive entries.
+ * An archive must not be modified while it is added; remove it first.
  */
 public class Cache {
 
+	static final Logger logger = Logger.getLogger(Cache.class);
+
 	static Cache cache = null;
 	static File dir = null;
 
+	final CopyOnWriteArrayList<MappedZipFile> archives = new CopyOnWriteArrayList<MappedZipFile>();
+	final LinkedHashMap<String,Resource> resources = new LinkedHashMap<String,Resource>(64, 0.75f, true);
+	long maxMemorySize = 16 * 1024 * 1024; //total bytes of resources kept in memory
+	long maxResourceSize = 256 * 1024; //largest file kept in memory
+	long memorySize = 0;
+	long generation = 0;
+	long hits = 0;
+	long misses = 0;
+	long evictions = 0;
+
 	/**
 	 * The protected constructor to prevent instantiation of
 	 * the class except through the getInstance() method.
@@ -60,22 +98,190 @@ public class Cache {
 	 */
 	public synchronized void clear() {
 		FileUtil.deleteAll(dir);
+		clearMemory();
+	}
+
+	/**
+	 * Set the limits of the memory tier.
+	 * @param maxMemorySize the maximum total number of bytes of resources
+	 * (including their compressed forms) to keep in memory (default 16MB).
+	 * A value of zero disables the memory tier.
+	 * @param maxResourceSize the length of the largest file to keep in memory (default 256KB).
+	 */
+	public void setMemoryLimits(long maxMemorySize, long maxResourceSize) {
+		synchronized (resources) {
+			this.maxMemorySize = Math.max(maxMemorySize, 0);
+			this.maxResourceSize = Math.max(maxResourceSize, 0);
+			evict();
+		}
 	}
 
 	/**
-	 * Get a File pointing to a resource in the cache, loading the
-	 * resource from the classpath if the resource is not in the cache.
+	 * Get a resource from the cache, loading the resource from the classpath
+	 * if it is not in the cache. Resources which are small enough are kept
+	 * in memory; others are returned without their contents, to be served
+	 * from the file. A resource kept in memory is returned only if its file
+	 * still has the last modified time and length it had when it was read,
+	 * which costs one file system stat per request. Resources from archives
+	 * are not checked, since archives must not be modified while they are
+	 * registered; a file added to the cache directory while an entry of
+	 * the same name is in memory is served after the entry is evicted or
+	 * the memory tier is cleared.
+	 * @param path the relative path to the resource, as in getFile.
+	 * @return the resource, or null if the resource cannot be obtained
+	 * from the classpath.
+	 */
+	public Resource getResource(String path) {
+		if (path.startsWith("/")) path = path.substring(1);
+		long gen;
+		long maxSize;
+		Resource cached;
+		synchronized (resources) {
+			cached = resources.get(path);
+			if (cached != null) hits++;
+			else misses++;
+			gen = generation;
+			maxSize = (maxMemorySize > 0) ? maxResourceSize : -1;
+		}
+		if (cached != null) {
+			//Check the file outside the lock, and drop the resource if it is stale.
+			if (cached.isCurrent()) return cached;
+			synchronized (resources) {
+				hits--;
+				misses++;
+				if (resources.get(path) == cached) {
+					resources.remove(path);
+					memorySize -= cached.getSize();
+				}
+			}
+		}
+		//Read the resource outside the lock so other requests are not blocked.
+		//An archive entry is served from the mapped archive if it is STORED or
+		//small enough to inflate into memory; otherwise it is extracted.
+		Resource resource = null;
+		if (!new File(dir, path).exists()) {
+			MappedZipFile zip = getArchive(path);
+			if (zip != null) {
+				MappedZipFile.Entry entry = zip.getEntry(path);
+				if (entry.isStored() || (entry.getSize() <= maxSize)) {
+					try { resource = new Resource(zip, entry, maxSize); }
+					catch (IOException ex) { logger.warn("Unable to read "+path+" from "+zip.getFile(), ex); }
+				}
+			}
+		}
+		if (resource == null) {
+			File file = getFile(path);
+			if (file == null) return null;
+			resource = new Resource(file, maxSize);
+			if (resource.bytes == null) return resource;
+		}
+		synchronized (resources) {
+			//Don't keep a resource read before the memory tier was cleared.
+			if ((maxSize >= 0) && (gen == generation)) {
+				Resource old = resources.put(path, resource);
+				if (old != null) memorySize -= old.getSize();
+				memorySize += resource.getSize();
+				evict();
+			}
+		}
+		return resource;
+	}
+
+	/**
+	 * Get a summary of the state of the memory tier.
+	 * @return a string containing the number of resources in memory,
+	 * their total size, and the hit, miss, and eviction counts.
+	 */
+	public String getStatus() {
+		synchronized (resources) {
+			return resources.size() + " resources, "
+					+ memorySize + " bytes (limit " + maxMemorySize + "), "
+					+ hits + " hits, "
+					+ misses + " misses, "
+					+ evictions + " evictions";
+		}
+	}
+
+	/**
+	 * Get a File pointing to a resource in the cache, extracting the
+	 * resource from an archive or loading it from the classpath if the
+	 * resource is not in the cache directory.
 	 * @param path the relative path to the resource. This is the same path
 	 * that is used to load the resource if it does not exist in the cache.
 	 * @return the File pointing to the resource in the cache, or null if
-	 * the resource cannot be obtained from the classpath.
+	 * the resource cannot be obtained from an archive or the classpath.
 	 */
     public synchronized File getFile(String path) {
 		if (path.startsWith("/")) path = path.substring(1);
 		File file = new File(dir, path);
+		if (!file.exists()) {
+			MappedZipFile zip = getArchive(path);
+			if (zip != null) {
+				file.getParentFile().mkdirs();
+				zip.extract(zip.getEntry(path), file);
+			}
+		}
 		return FileUtil.getFile(file, path);
 	}
 
+	/**
+	 * Add a zip file to the cache as an archive. The zip file is mapped
+	 * into memory, and its entries are served by getResource without being
+	 * extracted into the cache directory. As in load, .class files and the
+	 * contents of the META-INF directory are ignored. When several archives
+	 * contain the same entry, the one added last is used. If the file has
+	 * already been added, it is removed and mapped again.
+	 * <p>
+	 * The zip file must not be modified, replaced, or deleted while it is
+	 * added. On Windows, the mapping prevents the file from being replaced
+	 * or deleted; on Linux, truncating a mapped file makes the JVM crash with
+	 * SIGBUS when the missing contents are read. Call removeArchive before
+	 * changing the file. The mapping is released when it is garbage collected
+	 * after the archive is removed, so on Windows the file may stay locked
+	 * for a while.
+	 * @param file the zip file.
+	 * @return the number of resources in the archive.
+	 */
+	public synchronized int addArchive(File file) {
+		removeArchive(file);
+		try {
+			MappedZipFile zip = new MappedZipFile(file);
+			archives.add(0, zip);
+			clearMemory();
+			int count = 0;
+			for (String name : zip.getNames()) {
+				if (isLoadable(name)) count++;
+			}
+			logger.debug("Added archive "+file+": "+count+" resources");
+			return count;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to map "+file, ex);
+			return 0;
+		}
+	}
+
+	/**
+	 * Remove an archive from the cache and close it. The memory tier is
+	 * cleared, so no resources from the archive are served afterward,
+	 * although responses already in progress complete.
+	 * @param file the zip file which was added as an archive.
+	 * @return true if the archive was removed; false if it had not been added.
+	 */
+	public synchronized boolean removeArchive(File file) {
+		File target = file.getAbsoluteFile();
+		for (MappedZipFile zip : archives) {
+			if (zip.getFile().getAbsoluteFile().equals(target)) {
+				archives.remove(zip);
+				clearMemory();
+				zip.close();
+				logger.debug("Removed archive "+file);
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Get the root directory of the cache.
 	 * @return the root directory of the cache.
@@ -87,34 +293,243 @@ public class Cache {
 	/**
 	 * Load all the files in a zip file into the cache, preserving the
 	 * directory structure of the zip file, and ignoring any .class files.
+	 * The files are extracted concurrently, and files which are already
+	 * in the cache with the same size and CRC are not rewritten.
 	 * @param file the zip file to unpack.
-	 * @return the number of files loaded.
+	 * @return the number of files loaded, including the files
+	 * which were already current.
 	 */
 	public synchronized int load(File file) {
-		int count = 0;
-		ZipFile zipFile = null;
+		ZipExtractor.Result result = loadZip(file);
+		return (result != null) ? result.getExtracted() + result.getSkipped() : 0;
+	}
+
+	/**
+	 * Load all the files in a zip file into the cache, preserving the
+	 * directory structure of the zip file, and ignoring any .class files
+	 * and the contents of the META-INF directory.
+	 * The files are extracted concurrently, and files which are already
+	 * in the cache with the same size and CRC are not rewritten.
+	 * @param file the zip file to unpack.
+	 * @return the counts of the files extracted and skipped, or null
+	 * if the zip file does not exist or cannot be read.
+	 */
+	public synchronized ZipExtractor.Result loadZip(File file) {
+		if (!file.exists()) return null;
 		try {
-			if (file.exists()) {
-				zipFile = new ZipFile(file);
-				Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-				while (zipEntries.hasMoreElements()) {
-					ZipEntry entry = zipEntries.nextElement();
-					if (!entry.isDirectory()) {
-						String name = entry.getName().replace('/', File.separatorChar);
-						if (!name.endsWith(".class") && !name.startsWith("META-INF")) {
-							File outFile = new File(dir, name);
-							outFile.getParentFile().mkdirs();
-							OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
-							InputStream in = zipFile.getInputStream(entry);
-							if (FileUtil.copy( in, out, -1 )) count++;;
-						}
+			ZipExtractor.Result result = ZipExtractor.extract(
+				file,
+				dir,
+				new ZipExtractor.EntryFilter() {
+					public String getPath(ZipEntry entry) {
+						String name = entry.getName();
+						return isLoadable(name) ? name : null;
 					}
 				}
-			}
+			);
+			logger.debug("Loaded "+file+": "+result);
+			if (result.getExtracted() > 0) clearMemory();
+			return result;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to load "+file, ex);
+			return null;
+		}
+	}
+
+	//Get the most recently added archive containing an entry.
+	private MappedZipFile getArchive(String path) {
+		if (!isLoadable(path)) return null;
+		for (MappedZipFile zip : archives) {
+			if (zip.getEntry(path) != null) return zip;
+		}
+		return null;
+	}
+
+	//Determine whether a zip entry is a resource to be served from the cache.
+	private static boolean isLoadable(String name) {
+		return !name.endsWith(".class")
+					&& !name.startsWith("META-INF")
+						&& !name.startsWith("/")
+							&& !("/"+name+"/").contains("/../");
+	}
+
+	//Remove all resources from the memory tier.
+	private void clearMemory() {
+		synchronized (resources) {
+			resources.clear();
+			memorySize = 0;
+			generation++;
+		}
+	}
+
+	//Remove the least recently used resources until the memory tier is
+	//within its limit. This method must be called while holding the lock.
+	private void evict() {
+		Iterator<Map.Entry<String,Resource>> it = resources.entrySet().iterator();
+		while ((memorySize > maxMemorySize) && it.hasNext()) {
+			memorySize -= it.next().getValue().getSize();
+			it.remove();
+			evictions++;
 		}
-		catch (Exception ignore) { }
-		FileUtil.close(zipFile);
-		return count;
 	}
 
+	/**
+	 * A resource obtained from the cache.
+	 */
+	public static class Resource {
+		final File file;
+		final long lastModified;
+		final long length;
+		final String lastModifiedDate;
+		final String etag;
+		final byte[] bytes;
+		final ByteBuffer buffer;
+		final byte[] gzipBytes;
+
+		//Make a Resource for a file, reading the contents
+		//if the file is no longer than maxSize.
+		Resource(File file, long maxSize) {
+			this.file = file;
+			lastModified = file.lastModified();
+			lastModifiedDate = getHttpDate(lastModified);
+			etag = "\""+lastModified+"\"";
+			length = file.length();
+			byte[] bytes = null;
+			if (length <= maxSize) {
+				bytes = FileUtil.getBytes(file);
+				if (bytes.length != length) bytes = null;
+			}
+			this.bytes = bytes;
+			buffer = null;
+			gzipBytes = (bytes != null) ? compress(bytes) : null;
+		}
+
+		//Make a Resource for an archive entry. A STORED entry is kept
+		//as a slice of the mapped archive; a DEFLATED entry is inflated.
+		//The compressed form is made if the entry is no longer than maxSize.
+		Resource(MappedZipFile zip, MappedZipFile.Entry entry, long maxSize) throws IOException {
+			file = null;
+			long time = entry.getTime();
+			lastModified = (time != -1) ? time : zip.getFile().lastModified();
+			lastModifiedDate = getHttpDate(lastModified);
+			etag = "\""+lastModified+"\"";
+			length = entry.getSize();
+			ByteBuffer content = zip.getContent(entry);
+			if (entry.isStored()) {
+				bytes = null;
+				buffer = content;
+				if (entry.getSize() <= maxSize) {
+					byte[] copy = new byte[content.remaining()];
+					content.duplicate().get(copy);
+					gzipBytes = compress(copy);
+				}
+				else gzipBytes = null;
+			}
+			else {
+				bytes = content.array();
+				buffer = null;
+				gzipBytes = compress(bytes);
+			}
+		}
+
+		/**
+		 * Get the file containing the resource.
+		 * @return the file in the cache directory, or null if
+		 * the resource is served from an archive.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Get the contents of a resource which is served from
+		 * an archive without being copied into memory.
+		 * @return a read-only buffer containing the contents, or null
+		 * if the resource is not served from a mapped archive.
+		 */
+		public ByteBuffer getBuffer() {
+			return (buffer != null) ? buffer.duplicate() : null;
+		}
+
+		/**
+		 * Get the contents of the resource.
+		 * @return the contents, or null if the resource is not kept in the heap.
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get the gzip-compressed contents of the resource.
+		 * @return the compressed contents, or null if the resource is not
+		 * kept in memory or does not compress well.
+		 */
+		public byte[] getGzipBytes() {
+			return gzipBytes;
+		}
+
+		/**
+		 * Get the last modified time of the resource.
+		 * @return the last modified time in milliseconds.
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Get the last modified time of the resource in the HTTP date format.
+		 * @return the value for a Last-Modified header.
+		 */
+		public String getLastModifiedDate() {
+			return lastModifiedDate;
+		}
+
+		/**
+		 * Get the entity tag of the resource. The tag is the quoted last
+		 * modified time, as used for files by Servlet.doGet.
+		 * @return the value for an ETag header.
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		//Determine whether the file still has the last modified time and
+		//length it had when the resource was read, with one stat. A
+		//resource from an archive is always current.
+		boolean isCurrent() {
+			if (file == null) return true;
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				return (attrs.lastModifiedTime().toMillis() == lastModified) && (attrs.size() == length);
+			}
+			catch (Exception ex) { return false; }
+		}
+
+		//Get the number of bytes held in memory.
+		long getSize() {
+			return ((bytes != null) ? bytes.length : 0) + ((gzipBytes != null) ? gzipBytes.length : 0);
+		}
+
+		//Compress the contents, returning null unless the result
+		//saves at least a tenth of the length.
+		private static byte[] compress(byte[] bytes) {
+			try {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 3 + 64);
+				GZIPOutputStream gz = new GZIPOutputStream(baos) {
+					{ def.setLevel(Deflater.BEST_COMPRESSION); }
+				};
+				gz.write(bytes);
+				gz.close();
+				return (baos.size() <= bytes.length - bytes.length / 10) ? baos.toByteArray() : null;
+			}
+			catch (Exception ex) { return null; }
+		}
+
+		private static String getHttpDate(long time) {
+			SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return dateFormat.format(new Date(time));
+		}
+	}
 }
@@ -0,0 +1,117 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that encodes its data with the HTTP chunked
+ * transfer-coding. Data is buffered and written as one chunk when
+ * the buffer fills or the stream is flushed. Like ChunkedInputStream,
+ * this class NEVER closes the underlying stream; closing it writes
+ * the terminating chunk, so the connection can be used for subsequent
+ * HTTP 1.1 messages.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+	static final byte[] crlf = { '\r', '\n' };
+	static final byte[] lastChunk = { '0', '\r', '\n', '\r', '\n' };
+
+	final OutputStream out;
+	final byte[] buffer;
+	int count = 0;
+	boolean finished = false;
+
+	/**
+	 * Construct a ChunkedOutputStream with an 8K buffer.
+	 * @param out the underlying stream.
+	 */
+	public ChunkedOutputStream(OutputStream out) {
+		this(out, 8192);
+	}
+
+	/**
+	 * Construct a ChunkedOutputStream.
+	 * @param out the underlying stream.
+	 * @param size the size of the buffer, which is the largest chunk
+	 * written except for large writes, which are written as single chunks.
+	 */
+	public ChunkedOutputStream(OutputStream out, int size) {
+		this.out = out;
+		buffer = new byte[Math.max(size, 16)];
+	}
+
+	public void write(int b) throws IOException {
+		checkFinished();
+		buffer[count++] = (byte)b;
+		if (count == buffer.length) writeBuffer();
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkFinished();
+		if (len >= buffer.length) {
+			writeBuffer();
+			writeChunk(b, off, len);
+		}
+		else {
+			if (len > buffer.length - count) writeBuffer();
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Write any buffered data as a chunk and flush the underlying stream.
+	 * @throws IOException if the data cannot be written.
+	 */
+	public void flush() throws IOException {
+		if (!finished) writeBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Write any buffered data and the terminating chunk, without
+	 * closing the underlying stream. After this method is called,
+	 * no more data can be written.
+	 * @throws IOException if the data cannot be written.
+	 */
+	public void finish() throws IOException {
+		if (finished) return;
+		writeBuffer();
+		out.write(lastChunk);
+		out.flush();
+		finished = true;
+	}
+
+	/**
+	 * Finish the stream, leaving the underlying stream open.
+	 * @throws IOException if the data cannot be written.
+	 */
+	public void close() throws IOException {
+		finish();
+	}
+
+	private void writeBuffer() throws IOException {
+		if (count > 0) {
+			writeChunk(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	private void writeChunk(byte[] b, int off, int len) throws IOException {
+		out.write(Integer.toHexString(len).getBytes("US-ASCII"));
+		out.write(crlf);
+		out.write(b, off, len);
+		out.write(crlf);
+	}
+
+	private void checkFinished() throws IOException {
+		if (finished) throw new IOException("Attempt to write to a finished chunked stream");
+	}
+}
@@ -7,17 +7,114 @@
 
 package org.rsna.util;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Digests files, byte arrays, and strings.
  */
 public class DigestUtil {
 
+	static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+	static volatile ForkJoinPool digestPool = null;
+
+	//The MessageDigest instances for each thread, indexed by algorithm.
+	static final ThreadLocal<HashMap<String,MessageDigest>> digests =
+		new ThreadLocal<HashMap<String,MessageDigest>>() {
+			protected HashMap<String,MessageDigest> initialValue() {
+				return new HashMap<String,MessageDigest>();
+			}
+		};
+
+	/**
+	 * Get a MessageDigest for the current thread. The instance is
+	 * created on the first call for each algorithm in each thread and
+	 * is reset and returned on subsequent calls, so it must not be held
+	 * across another call to this method for the same algorithm.
+	 * @param algorithm the name of the algorithm (e.g., "MD5").
+	 * @return the reset MessageDigest.
+	 * @throws NoSuchAlgorithmException if the algorithm is not available.
+	 */
+	public static MessageDigest getMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+		HashMap<String,MessageDigest> map = digests.get();
+		MessageDigest md = map.get(algorithm);
+		if (md == null) {
+			md = MessageDigest.getInstance(algorithm);
+			map.put(algorithm, md);
+		}
+		else md.reset();
+		return md;
+	}
+
+	/**
+	 * Convert a byte array to a lowercase hex string, including
+	 * leading zeroes, with two characters per byte.
+	 * @param bytes the bytes to convert.
+	 * @return the hex string.
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i=0; i<bytes.length; i++) {
+			chars[2*i] = hexDigits[(bytes[i] >> 4) & 0x0f];
+			chars[2*i+1] = hexDigits[bytes[i] & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Convert a byte array, interpreted as an unsigned big-endian
+	 * integer, to a base-10 string without leading zeroes. The result
+	 * is the same as new BigInteger(1, bytes).toString().
+	 * @param bytes the bytes to convert.
+	 * @return the base-10 string.
+	 */
+	public static String toDecimal(byte[] bytes) {
+		//Pack the bytes into 32-bit words, most significant first.
+		int nWords = (bytes.length + 3) / 4;
+		int[] words = new int[nWords];
+		int shift = 0;
+		for (int i=bytes.length-1, w=nWords-1; i>=0; i--) {
+			words[w] |= (bytes[i] & 0xff) << shift;
+			shift += 8;
+			if (shift == 32) { shift = 0; w--; }
+		}
+		//Divide repeatedly by 10^9, collecting nine digits per division.
+		char[] chars = new char[bytes.length * 3 + 1];
+		int pos = chars.length;
+		int first = 0;
+		while (first < nWords) {
+			long rem = 0;
+			for (int w=first; w<nWords; w++) {
+				long n = (rem << 32) | (words[w] & 0xffffffffL);
+				words[w] = (int)(n / 1000000000L);
+				rem = n % 1000000000L;
+			}
+			while ((first < nWords) && (words[first] == 0)) first++;
+			for (int k=0; k<9; k++) {
+				chars[--pos] = (char)('0' + (rem % 10));
+				rem /= 10;
+				if ((first == nWords) && (rem == 0)) break;
+			}
+		}
+		if (pos == chars.length) chars[--pos] = '0';
+		return new String(chars, pos, chars.length - pos);
+	}
+
 	/**
 	 * Digest a file with a specified provider.
 	 * @param provider the name of the provider (e.g., "MD5")
@@ -29,24 +126,147 @@ public class DigestUtil {
 	 * an error occurs.
 	 */
 	public static String digest(String provider, File file, int radix) {
-		String result;
-		BufferedInputStream bis = null;
+		return digest(new String[] { provider }, file, radix)[0];
+	}
+
+	/**
+	 * Digest a file with several providers in one pass over the data.
+	 * The file is read through a channel into a pooled direct buffer,
+	 * and each block is supplied to all the providers. The MessageDigests
+	 * are the current thread's instances from getMessageDigest.
+	 * @param providers the names of the providers (e.g., "MD5", "SHA-256").
+	 * @param file the file to digest.
+	 * @param radix the radix of the returned results.
+	 * @return the digests of the file, in the order of the providers, each
+	 * converted to an integer string in the specified radix. If an error
+	 * occurs, all the elements are the empty string.
+	 */
+	public static String[] digest(String[] providers, File file, int radix) {
+		String[] results = new String[providers.length];
+		Arrays.fill(results, "");
+		FileChannel channel = null;
+		ByteBuffer buffer = BufferPool.getDirectBuffer();
 		try {
-			MessageDigest messageDigest = MessageDigest.getInstance(provider);
-			bis = new BufferedInputStream( new FileInputStream( file ) );
-			byte[] buffer = new byte[8192];
-			int n;
-			while ( (n=bis.read(buffer)) != -1) messageDigest.update(buffer, 0, n);
-			byte[] hashed = messageDigest.digest();
-			BigInteger bi = new BigInteger(1, hashed);
-			result = bi.toString(radix);
+			//A provider named more than once gets its own instance,
+			//since the per-thread instance can only be used once.
+			MessageDigest[] mds = new MessageDigest[providers.length];
+			for (int i=0; i<providers.length; i++) {
+				boolean repeated = false;
+				for (int k=0; k<i; k++) repeated |= providers[k].equals(providers[i]);
+				mds[i] = repeated ? MessageDigest.getInstance(providers[i]) : getMessageDigest(providers[i]);
+			}
+			channel = new FileInputStream(file).getChannel();
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				for (MessageDigest md : mds) {
+					buffer.mark();
+					md.update(buffer);
+					buffer.reset();
+				}
+				buffer.clear();
+			}
+			for (int i=0; i<mds.length; i++) {
+				results[i] = toString(mds[i].digest(), radix);
+			}
 		}
-		catch (Exception ex) { result = ""; }
+		catch (Exception ex) { Arrays.fill(results, ""); }
 		finally {
-			try { bis.close(); }
-			catch (Exception ignore) { }
+			FileUtil.close(channel);
+			BufferPool.releaseDirectBuffer(buffer);
+		}
+		return results;
+	}
+
+	/**
+	 * Digest a set of files concurrently.
+	 * @param provider the name of the provider (e.g., "MD5").
+	 * @param files the files to digest.
+	 * @param radix the radix of the returned results.
+	 * @return the digests of the files, indexed by file. The digest of a
+	 * file which cannot be read is the empty string.
+	 */
+	public static Map<File,String> digest(final String provider, File[] files, final int radix) {
+		final ConcurrentHashMap<File,String> results = new ConcurrentHashMap<File,String>();
+		LinkedList<ForkJoinTask<?>> tasks = new LinkedList<ForkJoinTask<?>>();
+		for (final File file : files) {
+			tasks.add(getPool().submit(
+				new Runnable() {
+					public void run() {
+						results.put(file, digest(provider, file, radix));
+					}
+				}
+			));
+		}
+		for (ForkJoinTask<?> task : tasks) task.join();
+		return new TreeMap<File,String>(results);
+	}
+
+	/**
+	 * Digest all the files in a directory tree concurrently. The
+	 * subdirectories and files are processed as separate tasks,
+	 * so large trees are spread across all the processors.
+	 * @param provider the name of the provider (e.g., "MD5").
+	 * @param dir the root of the directory tree.
+	 * @param radix the radix of the returned results.
+	 * @return the digests of the files in the tree, indexed by file. The
+	 * digest of a file which cannot be read is the empty string.
+	 */
+	public static Map<File,String> digestDirectory(String provider, File dir, int radix) {
+		ConcurrentHashMap<File,String> results = new ConcurrentHashMap<File,String>();
+		getPool().invoke(new DigestTask(provider, dir, radix, results));
+		return new TreeMap<File,String>(results);
+	}
+
+	//Get the pool for concurrent digests, creating it if necessary.
+	//The pool is larger than the number of processors, so reads
+	//from storage can overlap with hashing.
+	static ForkJoinPool getPool() {
+		ForkJoinPool pool = digestPool;
+		if (pool == null) {
+			synchronized (DigestUtil.class) {
+				if (digestPool == null) {
+					int n = Runtime.getRuntime().availableProcessors();
+					digestPool = new ForkJoinPool(Math.max(2 * n, 4));
+				}
+				pool = digestPool;
+			}
+		}
+		return pool;
+	}
+
+	//Convert a digest to a string in a radix.
+	private static String toString(byte[] hashed, int radix) {
+		if (radix == 10) return toDecimal(hashed);
+		return new BigInteger(1, hashed).toString(radix);
+	}
+
+	//A task to digest a file or the files in a directory tree.
+	static class DigestTask extends RecursiveAction {
+		static final long serialVersionUID = 1L;
+		final String provider;
+		final File file;
+		final int radix;
+		final ConcurrentHashMap<File,String> results;
+
+		DigestTask(String provider, File file, int radix, ConcurrentHashMap<File,String> results) {
+			this.provider = provider;
+			this.file = file;
+			this.radix = radix;
+			this.results = results;
+		}
+
+		protected void compute() {
+			if (file.isFile()) {
+				results.put(file, digest(provider, file, radix));
+			}
+			else {
+				File[] files = file.listFiles();
+				if (files == null) return;
+				LinkedList<DigestTask> tasks = new LinkedList<DigestTask>();
+				for (File f : files) tasks.add(new DigestTask(provider, f, radix, results));
+				invokeAll(tasks);
+			}
 		}
-		return result;
 	}
 
 	/**
@@ -89,10 +309,9 @@ public class DigestUtil {
 	 * @throws Exception if the hash fails
 	 */
 	public static String getUSMD5(String string) throws Exception {
-		MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-		byte[] hashed = messageDigest.digest(string.getBytes("UTF-8"));
-		BigInteger bi = new BigInteger(1,hashed);
-		return bi.toString();
+		MessageDigest messageDigest = getMessageDigest("MD5");
+		byte[] hashed = messageDigest.digest(string.getBytes(FileUtil.utf8));
+		return toDecimal(hashed);
 	}
 
 }
@@ -26,8 +26,23 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.*;
 import java.util.zip.*;
 
@@ -39,10 +54,28 @@ public class FileUtil {
 	public static final Charset latin1 = Charset.forName("ISO-8859-1");
 	public static final Charset utf8 = Charset.forName("UTF-8");
 
+	static final int copyThreads = 4;
+	static final long maxArrayLength = Integer.MAX_VALUE - 8; //largest file returned by getBytes
+
+	//The threads for copying directory trees, shared by all callers.
+	static final ExecutorService copyExecutor = Executors.newFixedThreadPool(
+		copyThreads,
+		new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "FileUtil-copy-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}
+	);
+
 	/**
 	 * Read a file completely and return a byte array containing the data.
+	 * Files which are too large for an array (about 2GB) are not read.
 	 * @param file the file to read.
-	 * @return the bytes of the file, or an empty array if an error occurred.
+	 * @return the bytes of the file, or an empty array if an error occurred
+	 * or the file is too large.
 	 */
 	public static byte[] getBytes(File file) {
 		return getBytes(file, -1);
@@ -56,16 +89,24 @@ public class FileUtil {
 	 */
 	public static byte[] getBytes(File file, int length) {
 		if (!file.exists()) return new byte[0];
-		int fileLength = (int)file.length();
-		if (length == -1) length = fileLength;
-		if (fileLength < length) length = fileLength;
+		long fileLength = file.length();
+		if ((length == -1) && (fileLength > maxArrayLength)) {
+			//The file cannot be returned in an array;
+			//it must be read with a stream or a channel.
+			return new byte[0];
+		}
+		if ((length == -1) || (fileLength < length)) length = (int)fileLength;
 		byte[] bytes = new byte[length];
 		FileInputStream fis = null;
 		try {
 			fis = new FileInputStream(file);
-			fis.read(bytes, 0, bytes.length);
+			int total = 0;
+			int n;
+			while ((total < length) && ((n = fis.read(bytes, total, length - total)) != -1)) {
+				total += n;
+			}
 			close(fis);
-			return bytes;
+			return (total == length) ? bytes : Arrays.copyOf(bytes, total);
 		}
 		catch (Exception e) { close(fis); return new byte[0]; }
 	}
@@ -341,19 +382,62 @@ public class FileUtil {
 	 * @param outDir the copy.
 	 * @return true if the operation succeeded completely; false otherwise.
 	 */
-	public static synchronized boolean copyDirectory(File inDir, File outDir) {
-		outDir.mkdirs();
-		File[] files = inDir.listFiles();
-		for (File inFile : files) {
-			File outFile = new File(outDir, inFile.getName());
-			if (inFile.isFile()) {
-				if (!copy(inFile, outFile)) return false;
-			}
-			else {
-				if (!copyDirectory(inFile, outFile)) return false;
-			}
+	public static boolean copyDirectory(File inDir, File outDir) {
+		return copyDirectory(inDir, outDir, false);
+	}
+
+	/**
+	 * Copy a complete directory tree from one directory to another.
+	 * The directories are created as the tree is walked, and the files
+	 * are copied in parallel by a bounded set of threads shared by all
+	 * callers. Symbolic links are followed.
+	 * @param inDir the directory to copy.
+	 * @param outDir the copy.
+	 * @param preserveTimestamps true if the copied files are to have the
+	 * last-modified times of the originals.
+	 * @return true if the operation succeeded completely; false otherwise.
+	 */
+	public static boolean copyDirectory(File inDir, File outDir, final boolean preserveTimestamps) {
+		final Path inRoot = inDir.toPath();
+		final Path outRoot = outDir.toPath();
+		final LinkedList<Future<Boolean>> copies = new LinkedList<Future<Boolean>>();
+		final boolean[] ok = { true };
+		try {
+			Files.walkFileTree(
+				inRoot,
+				EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+				Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>() {
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+						File out = outRoot.resolve(inRoot.relativize(dir)).toFile();
+						if (!out.mkdirs() && !out.isDirectory()) ok[0] = false;
+						return FileVisitResult.CONTINUE;
+					}
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						final File in = file.toFile();
+						final File out = outRoot.resolve(inRoot.relativize(file)).toFile();
+						copies.add(copyExecutor.submit(
+							new Callable<Boolean>() {
+								public Boolean call() {
+									return copy(in, out, preserveTimestamps);
+								}
+							}
+						));
+						return FileVisitResult.CONTINUE;
+					}
+					public FileVisitResult visitFileFailed(Path file, IOException ex) {
+						ok[0] = false;
+						return FileVisitResult.CONTINUE;
+					}
+				}
+			);
 		}
-		return true;
+		catch (Exception ex) { ok[0] = false; }
+		for (Future<Boolean> copy : copies) {
+			try { ok[0] &= copy.get(); }
+			catch (Exception ex) { ok[0] = false; }
+		}
+		return ok[0];
 	}
 
 	/**
@@ -362,33 +446,86 @@ public class FileUtil {
 	 * @param outFile the copy.
 	 * @return true if the operation succeeded completely; false otherwise.
 	 */
-	public static synchronized boolean copy(File inFile, File outFile) {
-		try { 
-			return copy(new BufferedInputStream( new FileInputStream(inFile)), 
-						new BufferedOutputStream( new FileOutputStream(outFile) ),
-						-1);
+	public static boolean copy(File inFile, File outFile) {
+		return copy(inFile, outFile, false);
+	}
+
+	/**
+	 * Copy a file through FileChannel.transferTo, which lets the
+	 * operating system move the data without passing it through
+	 * the Java heap. If transferTo stops making progress before the end
+	 * of the file, the rest is copied through a buffer. If the output
+	 * file exists, it is overwritten.
+	 * @param inFile the file to copy.
+	 * @param outFile the copy.
+	 * @param preserveTimestamp true if the copy is to have the
+	 * last-modified time of the original.
+	 * @return true if the operation succeeded completely; false otherwise.
+	 */
+	public static boolean copy(File inFile, File outFile, boolean preserveTimestamp) {
+		FileChannel in = null;
+		FileChannel out = null;
+		try {
+			in = new FileInputStream(inFile).getChannel();
+			out = new FileOutputStream(outFile).getChannel();
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				long n = in.transferTo(position, size - position, out);
+				if (n <= 0) break;
+				position += n;
+			}
+			if (position < size) position = copyBuffered(in, out, position, size);
+			close(out);
+			out = null;
+			if (position != size) return false;
+			if (preserveTimestamp) outFile.setLastModified(inFile.lastModified());
+			return true;
 		}
 		catch (Exception e) { return false; }
+		finally {
+			close(in);
+			close(out);
+		}
+	}
+
+	//Copy the bytes of a channel from a position up to a size through a
+	//pooled buffer, returning the position reached. The output channel
+	//is written at its current position.
+	private static long copyBuffered(FileChannel in, FileChannel out, long position, long size) throws IOException {
+		ByteBuffer buffer = BufferPool.getDirectBuffer();
+		try {
+			while (position < size) {
+				buffer.clear();
+				buffer.limit((int)Math.min(buffer.capacity(), size - position));
+				int n = in.read(buffer, position);
+				if (n == -1) break;
+				buffer.flip();
+				while (buffer.hasRemaining()) out.write(buffer);
+				position += n;
+			}
+			return position;
+		}
+		finally { BufferPool.releaseDirectBuffer(buffer); }
 	}
 
 	/**
 	 * Copy a maximum number of bytes from an InputStream to an OutputStream.
 	 * The OutputStream is always closed when the operation is complete.
-	 * If the contentLength is positive, the InputStream is left open;
-	 * else it is closed when the operation is complete.
+	 * If the contentLength is positive, the InputStream is left open,
+	 * positioned immediately after the copied bytes; else it is closed
+	 * when the operation is complete.
 	 * @param in the stream to copy.
 	 * @param out the copy.
 	 * @param contentLength the maximum number of bytes to copy, or -1 to read the InputStream fully.
 	 * @return true if the operation succeeded completely; false otherwise.
 	 */
-	public static synchronized boolean copy(InputStream in, OutputStream out, long contentLength) {
+	public static boolean copy(InputStream in, OutputStream out, long contentLength) {
 		long length = (contentLength > 0) ? contentLength : Long.MAX_VALUE;
 		boolean result = true;
 		long bytesRead = 0;
+		byte[] b = BufferPool.getBuffer();
 		try {
-			int bufferSize = 1024 * 64;
-			in = new BufferedInputStream(in);
-			byte[] b = new byte[bufferSize];
 			int n;
 
 			while ( (bytesRead < length) &&
@@ -400,6 +537,7 @@ public class FileUtil {
 		}
 		catch (Exception ex) { result = false; }
 		finally {
+			BufferPool.releaseBuffer(b);
 			if (contentLength < 0) close(in);
 			close(out);
 		}
@@ -414,19 +552,32 @@ public class FileUtil {
 	 * or -1 to read the InputStream fully.
 	 * @return true if the operation succeeded completely; false otherwise.
 	 */
-	public static synchronized boolean discard(InputStream in, int contentLength) {
-		int length = (contentLength > 0) ? contentLength : Integer.MAX_VALUE;
+	public static boolean discard(InputStream in, int contentLength) {
+		return discard(in, (long)contentLength);
+	}
+
+	/**
+	 * Read and discard a specified number of bytes from an InputStream.
+	 * The InputStream is not closed when the operation is complete.
+	 * @param in the stream to read.
+	 * @param contentLength the number of bytes to read and discard,
+	 * or -1 to read the InputStream fully.
+	 * @return true if the operation succeeded completely; false otherwise.
+	 */
+	public static boolean discard(InputStream in, long contentLength) {
+		long length = (contentLength > 0) ? contentLength : Long.MAX_VALUE;
 		boolean result = true;
-		int bytesRead = 0;
+		long bytesRead = 0;
+		byte[] b = BufferPool.getBuffer();
 		try {
-			byte[] b = new byte[4096];
 			int n;
 			while ( (bytesRead < length) &&
-						((n = in.read(b, 0, Math.min(b.length, length-bytesRead))) != -1) ) {
+						((n = in.read(b, 0, (int)Math.min(b.length, length-bytesRead))) != -1) ) {
 				bytesRead += n;
 			}
 		}
 		catch (Exception ex) { result = false; }
+		finally { BufferPool.releaseBuffer(b); }
 		return result;
 	}
 
@@ -496,6 +647,17 @@ public class FileUtil {
 		}
 	}
 
+	/**
+	 * Close a Channel and ignore Exceptions.
+	 * @param channel the Channel to close.
+	 */
+	public static void close(Channel channel) {
+		if (channel != null) {
+			try { channel.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
 	/**
 	 * Get a File for a name, copying a default file into place
 	 * if the File does not exist.
@@ -719,12 +881,14 @@ public class FileUtil {
 	 * @param zipFile the output zip file.
 	 * @return true if the operation succeeded completely; false otherwise.
 	 */
-	public static synchronized boolean zipDirectory(File dir, File zipFile) {
+	public static boolean zipDirectory(File dir, File zipFile) {
 		return zipDirectory(dir, zipFile, false);
 	}
 
 	/**
-	 * Zip a directory and its subdirectories.
+	 * Zip a directory and its subdirectories. The files are compressed
+	 * in parallel, and files whose content is already compressed are
+	 * stored without compression (see ParallelZipWriter).
 	 * @param dir the directory to zip.
 	 * @param zipFile the output zip file.
 	 * @param suppressRoot true if the path to the root directory (dir) is
@@ -732,7 +896,8 @@ public class FileUtil {
 	 * with the name of the root directory.
 	 * @return true if the operation succeeded completely; false otherwise.
 	 */
-	public static synchronized boolean zipDirectory(File dir, File zipFile, boolean suppressRoot) {
+	public static boolean zipDirectory(File dir, File zipFile, boolean suppressRoot) {
+		ParallelZipWriter zout = null;
 		try {
 			dir = dir.getCanonicalFile();
 
@@ -749,14 +914,16 @@ public class FileUtil {
 			rootLength++; //allow for the slash that will appear in files that are zipped
 
 			//Get the streams
-			FileOutputStream fout = new FileOutputStream(zipFile);
-			ZipOutputStream zout = new ZipOutputStream(fout);
+			zout = new ParallelZipWriter(new FileOutputStream(zipFile));
 
-			zipDirectory(zout, dir, rootLength);
+			zipDirectory(zout, dir, rootLength, null);
 			zout.close();
 			return true;
 		}
-		catch (Exception ex) { return false; }
+		catch (Exception ex) {
+			close(zout);
+			return false;
+		}
 	}
 
 	/**
@@ -766,7 +933,8 @@ public class FileUtil {
 	 * @param zipFile the output zip file.
 	 * @return true if the operation succeeded completely; false otherwise.
 	 */
-	public static synchronized boolean zipDirectory(File manifest, File dir, File zipFile) {
+	public static boolean zipDirectory(File manifest, File dir, File zipFile) {
+		ParallelZipWriter zout = null;
 		try {
 			dir = dir.getCanonicalFile();
 
@@ -776,52 +944,35 @@ public class FileUtil {
 			rootLength++; //allow for the slash that will appear in files that are zipped
 
 			//Get the streams
-			FileOutputStream fout = new FileOutputStream(zipFile);
-			ZipOutputStream zout = new ZipOutputStream(fout);
-			
+			zout = new ParallelZipWriter(new FileOutputStream(zipFile));
+
 			//put the manifest in the file
-			String name = manifest.getName();
-			ZipEntry ze = new ZipEntry(name);
-			byte[] buffer = new byte[10000];
-			int bytesread;
-			FileInputStream fin = new FileInputStream(manifest);
-			zout.putNextEntry(ze);
-			while ((bytesread = fin.read(buffer)) > 0) zout.write(buffer,0,bytesread);
-			zout.closeEntry();
-			fin.close();
+			zout.addFile(manifest, manifest.getName());
 
 			zipDirectory(zout, dir, rootLength, manifest);
 			zout.close();
 			return true;
 		}
-		catch (Exception ex) { return false; }
+		catch (Exception ex) {
+			close(zout);
+			return false;
+		}
 	}
 
-	//Zip a directory and its subdirectories into a ZipOutputStream,
-	//setting the root of the zip package to be the parent directory
-	//of the originally requested directory.
-	private static synchronized void zipDirectory(ZipOutputStream zout, File dir, int rootLength)
-												throws Exception {
-		zipDirectory(zout, dir, rootLength, null);
-	}
-	
-	//Zip a directory and its subdirectories into a ZipOutputStream,
+	//Zip a directory and its subdirectories into a ParallelZipWriter,
 	//setting the root of the zip package to be the parent directory
 	//of the originally requested directory.
-	private static synchronized void zipDirectory(ZipOutputStream zout, File dir, int rootLength, File fileToSuppress)
+	private static void zipDirectory(ParallelZipWriter zout, File dir, int rootLength, File fileToSuppress)
 												throws Exception {
 		if (dir.isDirectory()) {
 			String name = dir.getAbsolutePath() + "/";
 			if (name.length() > rootLength) {
-				name = name.substring(rootLength);
-				if (!name.endsWith("/")) name += "/";
-				ZipEntry ze = new ZipEntry(name);
-				zout.putNextEntry(ze);
+				zout.addDirectory(name.substring(rootLength), dir.lastModified());
 			}
 			File[] files = dir.listFiles();
 			for (File file : files) {
 				if ((fileToSuppress == null) || !file.equals(fileToSuppress)) {
-					if (file.isDirectory()) zipDirectory(zout, file, rootLength);
+					if (file.isDirectory()) zipDirectory(zout, file, rootLength, null);
 					else zipFile(zout, file, rootLength);
 				}
 			}
@@ -836,14 +987,14 @@ public class FileUtil {
 	 * @return true if the operation succeeded completely; false otherwise.
 	 */
 	public static boolean zipFiles(String[] list, File dir, File zipFile) {
+		ParallelZipWriter zout = null;
 		try {
 			//Get the parent and find out how long it is
 			File parent = dir.getParentFile();
 			int rootLength = parent.getAbsolutePath().length() + 1;
 
-			//Get the various streams and buffers
-			FileOutputStream fout = new FileOutputStream(zipFile);
-			ZipOutputStream zout = new ZipOutputStream(fout);
+			//Get the writer
+			zout = new ParallelZipWriter(new FileOutputStream(zipFile));
 
 			for (String name : list) {
 				File file = new File(dir, name);
@@ -852,32 +1003,33 @@ public class FileUtil {
 			zout.close();
 			return true;
 		}
-		catch (Exception ex) { return false; }
+		catch (Exception ex) {
+			close(zout);
+			return false;
+		}
 	}
 
-	//Zip a file into a ZipOutputStream, setting the
+	//Zip a file into a ParallelZipWriter, setting the
 	//root of the zip package to be the parent directory
 	//of the originally requested directory.
-	private static synchronized void zipFile(ZipOutputStream zout, File file, int rootLength)
+	private static void zipFile(ParallelZipWriter zout, File file, int rootLength)
 												throws Exception {
-		FileInputStream fin;
-		ZipEntry ze;
-		byte[] buffer = new byte[10000];
-		int bytesread;
 		String entryname = file.getAbsolutePath().substring(rootLength);
-		entryname = entryname.replaceAll("\\\\", "/");
-		ze = new ZipEntry(entryname);
-		if (file.exists()) {
-			fin = new FileInputStream(file);
-			zout.putNextEntry(ze);
-			while ((bytesread = fin.read(buffer)) > 0) zout.write(buffer,0,bytesread);
-			zout.closeEntry();
-			fin.close();
+		if (file.exists()) zout.addFile(file, entryname);
+	}
+
+	//Close a ParallelZipWriter and ignore Exceptions.
+	private static void close(ParallelZipWriter zout) {
+		if (zout != null) {
+			try { zout.close(); }
+			catch (Exception ignore) { }
 		}
 	}
 
 	/**
 	 * Unpack a zip file into a root directory, preserving the directory structure of the zip file.
+	 * The entries are extracted concurrently, and entries whose files already exist with the
+	 * same size and CRC are skipped. Extracted files have the modification times of their entries.
 	 * @param root the directory into which to unpack the zip file.
 	 * @param file the zip file to unpack.
 	 * @param filterNames true if characters that would cause a problem
@@ -886,34 +1038,38 @@ public class FileUtil {
 	 * @throws Exception if anything goes wrong.
 	 */
 	public static void unpackZipFile(File root, File file, boolean filterNames) throws Exception {
+		unpackZip(root, file, filterNames);
+	}
+
+	/**
+	 * Unpack a zip file into a root directory, preserving the directory structure of the zip file,
+	 * and return the counts of the files processed. This is unpackZipFile with a result.
+	 * @param root the directory into which to unpack the zip file.
+	 * @param file the zip file to unpack.
+	 * @param filterNames true if characters that would cause a problem
+	 * in URLs are to be replaced with underscores; false if file names
+	 * are to be preserved.
+	 * @return the counts of the files extracted, skipped, and failed.
+	 * @throws Exception if anything goes wrong.
+	 */
+	public static ZipExtractor.Result unpackZip(File root, File file, final boolean filterNames) throws Exception {
 		if (!file.exists()) throw new Exception("Zip file does not exist ("+file+")");
-		ZipFile zipFile = new ZipFile(file);
-		Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-		while (zipEntries.hasMoreElements()) {
-			ZipEntry entry = zipEntries.nextElement();
-			String name = entry.getName().replace('/', File.separatorChar);
-
-			//Make sure that the directory is present
-			File outFile = new File(root, name);
-			outFile.getParentFile().mkdirs();
-
-			if (!entry.isDirectory()) {
-				//Clean up any file names that might cause a problem in a URL.
-				name = outFile.getName();
-				if (filterNames) {
-					name = name.trim()
-								.replaceAll("[\\s]+","_")
-								 .replaceAll("[*\"&'><#;:@/?=]","_");
+		return ZipExtractor.extract(
+			file,
+			root,
+			new ZipExtractor.EntryFilter() {
+				public String getPath(ZipEntry entry) {
+					String path = entry.getName();
+					if (!filterNames) return path;
+					//Clean up any file names that might cause a problem in a URL.
+					int k = path.lastIndexOf('/') + 1;
+					String name = path.substring(k).trim()
+										.replaceAll("[\\s]+","_")
+										 .replaceAll("[*\"&'><#;:@/?=]","_");
+					return path.substring(0, k) + name;
 				}
-				outFile = new File(outFile.getParentFile(), name);
-
-				//Now write the file with the corrected name.
-				OutputStream out = new FileOutputStream(outFile);
-				InputStream in = zipFile.getInputStream(entry);
-				FileUtil.copy( in, out, -1 );
 			}
-		}
-		FileUtil.close(zipFile);
+		);
 	}
 
 	/**
@@ -947,69 +1103,30 @@ public class FileUtil {
 	 * @throws Exception if any error occurs.
 	 */
 	public static void zipStreamFile(File file, OutputStream out) throws Exception {
-		FileInputStream fin;
-		ZipOutputStream zout = null;
-		String entryname;
-		int bytesread;
-		ZipEntry ze;
-		byte[] buffer = new byte[10000];
-		try {
-			zout = new ZipOutputStream(out);
-			entryname = file.getName();
-			ze = new ZipEntry(entryname);
-			if (file.exists()) {
-				fin = new FileInputStream(file);
-				zout.putNextEntry(ze);
-				while ((bytesread = fin.read(buffer)) > 0) zout.write(buffer,0,bytesread);
-				fin.close();
-			}
-		}
-		finally {
-			if (zout != null) {
-				try { zout.closeEntry(); } catch (Exception ex) { }
-				try { zout.flush(); } catch (Exception ex) { }
-				try { zout.close(); } catch (Exception ex) { }
-
-			}
-		}
+		zipStreamFiles(new File[] { file }, out);
 	}
 
 	/**
 	 * Send an array of files to an output stream, 
 	 * zipping it during the transmission and
-	 * closing the output stream when done.
+	 * closing the output stream when done. The files are
+	 * compressed in parallel (see ParallelZipWriter).
 	 * @param files the files to stream.
 	 * @param out the output stream.
 	 * @throws Exception if any error occurs.
 	 */
 	public static void zipStreamFiles(File[] files, OutputStream out) throws Exception {
-		FileInputStream fin;
-		ZipOutputStream zout = null;
-		String entryname;
-		int bytesread;
-		ZipEntry ze;
-		byte[] buffer = new byte[10000];
+		ParallelZipWriter zout = new ParallelZipWriter(out);
 		try {
-			zout = new ZipOutputStream(out);
 			for (File file : files) {
-				entryname = file.getName();
-				ze = new ZipEntry(entryname);
-				if (file.exists()) {
-					fin = new FileInputStream(file);
-					zout.putNextEntry(ze);
-					while ((bytesread = fin.read(buffer)) > 0) zout.write(buffer,0,bytesread);
-					fin.close();
-				}
+				if (file.exists()) zout.addFile(file, file.getName());
 			}
 		}
-		finally {
-			if (zout != null) {
-				try { zout.closeEntry(); } catch (Exception ex) { }
-				try { zout.flush(); } catch (Exception ex) { }
-				try { zout.close(); } catch (Exception ex) { }
-
-			}
+		catch (Exception ex) {
+			close(zout);
+			throw ex;
 		}
+		zout.close();
 	}
 
 	/**
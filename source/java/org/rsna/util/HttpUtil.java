@@ -24,6 +24,7 @@ import java.util.Properties;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
 /**
@@ -31,6 +32,8 @@ import javax.net.ssl.TrustManager;
  */
 public class HttpUtil {
 
+	static SSLSocketFactory acceptAllSocketFactory = null;
+
 	/**
 	 * Get an HttpURLConnection for a specified URL String. The
 	 * connection is returned set up for input and output, with
@@ -88,11 +91,9 @@ public class HttpUtil {
 			httpsConn.setUseCaches(false);
 			httpsConn.setDefaultUseCaches(false);
 
-			//Accept all certs
-			TrustManager[] trustAllCerts = new TrustManager[] { new AcceptAllX509TrustManager() };
-			SSLContext sc = SSLContext.getInstance("SSL");
-			sc.init(null, trustAllCerts, new SecureRandom());
-			httpsConn.setSSLSocketFactory(sc.getSocketFactory());
+			//Accept all certs. The socket factory is shared so that
+			//HttpsURLConnection can reuse kept-alive connections.
+			httpsConn.setSSLSocketFactory(getAcceptAllSocketFactory());
 
 			conn = httpsConn;
 		}
@@ -127,6 +128,17 @@ public class HttpUtil {
 		return conn;
 	}
 
+	//Get the socket factory which accepts all certificates, creating it if necessary.
+	private static synchronized SSLSocketFactory getAcceptAllSocketFactory() throws Exception {
+		if (acceptAllSocketFactory == null) {
+			TrustManager[] trustAllCerts = new TrustManager[] { new AcceptAllX509TrustManager() };
+			SSLContext sc = SSLContext.getInstance("SSL");
+			sc.init(null, trustAllCerts, new SecureRandom());
+			acceptAllSocketFactory = sc.getSocketFactory();
+		}
+		return acceptAllSocketFactory;
+	}
+
 	/**
 	 * Initialize the CookieHandler and set it as the default.
 	 * @return the CookieManager
@@ -0,0 +1,231 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.util;
+
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.AuthenticationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of connections to an LDAP provider for authenticating users.
+ * Instead of opening a new connection for each authentication, an idle
+ * connection is re-bound with the user's credentials. The number of
+ * concurrent binds is limited, so a burst of logins cannot flood the
+ * provider with connections. Idle connections do not retain the
+ * credentials of the last user bound on them.
+ */
+public class LdapConnectionPool {
+
+	static final Logger logger = Logger.getLogger(LdapConnectionPool.class);
+
+	static final String connectTimeout = "10000"; //ms
+
+	final Hashtable<String,String> env;
+	final int maxConnections;
+	final Semaphore permits;
+	final ConcurrentLinkedQueue<LdapContext> idle = new ConcurrentLinkedQueue<LdapContext>();
+	final AtomicInteger idleCount = new AtomicInteger();
+	final AtomicInteger active = new AtomicInteger();
+	final AtomicLong connections = new AtomicLong();
+	final AtomicLong binds = new AtomicLong();
+	final AtomicLong failures = new AtomicLong();
+	final AtomicLong bindTime = new AtomicLong(); //ns
+
+	/**
+	 * Construct a pool of connections to an LDAP provider.
+	 * Blank parameters are replaced by the same defaults used by
+	 * LdapUtil.authenticate.
+	 * @param initialContextFactory the factory class (e.g., "com.sun.jndi.ldap.LdapCtxFactory")
+	 * @param providerURL the URL of the provider (e.g., "ldap://ip:port/path")
+	 * @param securityAuthentication the authentication type (e.g., "simple")
+	 * @param referral whether to follow referrals (default: "ignore")
+	 * @param derefAliases whether to deref aliases (default: "never")
+	 * @param maxConnections the maximum number of concurrent binds,
+	 * which is also the maximum number of idle connections kept open.
+	 */
+	public LdapConnectionPool(
+			String initialContextFactory,
+			String providerURL,
+			String securityAuthentication,
+			String referral,
+			String derefAliases,
+			int maxConnections) {
+		env = LdapUtil.getEnvironment(
+				initialContextFactory, providerURL, securityAuthentication, referral, derefAliases);
+		env.put("com.sun.jndi.ldap.connect.timeout", connectTimeout);
+		this.maxConnections = Math.max(maxConnections, 1);
+		permits = new Semaphore(this.maxConnections, true);
+	}
+
+	/**
+	 * Authenticate a securityPrincipal with the LDAP provider.
+	 * @param securityPrincipal the username (e.g., "cn=username, ou=NewHires, o=JNDITutorial"
+	 * @param securityCredentials the password (e.g., "mysecret")
+	 * @return true if the authentication succeeds; false otherwise.
+	 */
+	public boolean authenticate(String securityPrincipal, String securityCredentials) {
+		if ((securityCredentials == null) || securityCredentials.trim().equals("")) {
+			logger.debug("Rejected: blank security credentials");
+			return false;
+		}
+		try { permits.acquire(); }
+		catch (InterruptedException ex) { return false; }
+		active.incrementAndGet();
+		long startTime = System.nanoTime();
+		try {
+			boolean result = bind(securityPrincipal, securityCredentials);
+			if (!result) failures.incrementAndGet();
+			logger.debug("Authentication result for \""+securityPrincipal+"\": "+result);
+			return result;
+		}
+		finally {
+			bindTime.addAndGet(System.nanoTime() - startTime);
+			binds.incrementAndGet();
+			active.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	/**
+	 * Authenticate a user who may be identified by any of several
+	 * securityPrincipals. The binds are attempted one at a time, in order,
+	 * and the method returns as soon as one succeeds, so a login makes no
+	 * more failed binds (which may count toward a directory's lockout
+	 * policy) than necessary and holds only one permit at a time.
+	 * @param securityPrincipals the possible principals for the user.
+	 * @param securityCredentials the password.
+	 * @return true if the authentication succeeds for any principal; false otherwise.
+	 */
+	public boolean authenticate(String[] securityPrincipals, String securityCredentials) {
+		for (String principal : securityPrincipals) {
+			if (authenticate(principal, securityCredentials)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of binds in progress.
+	 * @return the number of binds in progress.
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * Get the number of idle connections in the pool.
+	 * @return the number of idle connections.
+	 */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/**
+	 * Get the average time taken by a bind, including the time waiting for
+	 * a connection and the time opening a connection if one was required.
+	 * @return the average time in milliseconds, or zero if no binds have been done.
+	 */
+	public double getAverageBindTime() {
+		long n = binds.get();
+		return (n == 0) ? 0.0 : ((double)bindTime.get() / n) / 1000000.0;
+	}
+
+	/**
+	 * Get a summary of the state of the pool.
+	 * @return a string containing the connection counts and the bind statistics.
+	 */
+	public String getStatus() {
+		return active.get() + " active, "
+				+ idleCount.get() + " idle (limit " + maxConnections + "), "
+				+ connections.get() + " connections opened, "
+				+ binds.get() + " binds, "
+				+ failures.get() + " failures, "
+				+ String.format("%.1f", getAverageBindTime()) + " ms average bind time";
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	public void close() {
+		LdapContext ctx;
+		while ((ctx = idle.poll()) != null) {
+			idleCount.decrementAndGet();
+			close(ctx);
+		}
+	}
+
+	//Bind with the credentials, re-binding an idle connection if one is
+	//available and opening a new connection if not. A pooled connection
+	//which cannot be re-bound for any reason other than the credentials
+	//is assumed to be stale and is replaced.
+	private boolean bind(String principal, String credentials) {
+		LdapContext ctx = idle.poll();
+		if (ctx != null) {
+			idleCount.decrementAndGet();
+			try {
+				ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+				ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, credentials);
+				ctx.reconnect(null);
+				release(ctx);
+				return true;
+			}
+			catch (AuthenticationException ex) {
+				close(ctx);
+				logger.debug("Bind rejected: "+ex.getMessage());
+				return false;
+			}
+			catch (NamingException ex) {
+				close(ctx);
+				logger.debug("Unable to reuse a pooled connection: "+ex.getMessage());
+			}
+		}
+		Hashtable<String,String> ctxEnv = new Hashtable<String,String>(env);
+		ctxEnv.put(Context.SECURITY_PRINCIPAL, principal);
+		ctxEnv.put(Context.SECURITY_CREDENTIALS, credentials);
+		try {
+			ctx = new InitialLdapContext(ctxEnv, null);
+			connections.incrementAndGet();
+			release(ctx);
+			return true;
+		}
+		catch (NamingException ex) {
+			logger.debug("Unable to get InitialLdapContext: "+ex.getMessage());
+			return false;
+		}
+	}
+
+	//Return a connection to the pool, removing the principal and the
+	//credentials from its environment, or close it if the pool is full.
+	private void release(LdapContext ctx) {
+		try {
+			ctx.removeFromEnvironment(Context.SECURITY_PRINCIPAL);
+			ctx.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+		}
+		catch (NamingException ex) {
+			close(ctx);
+			return;
+		}
+		if (idleCount.incrementAndGet() <= maxConnections) idle.offer(ctx);
+		else {
+			idleCount.decrementAndGet();
+			close(ctx);
+		}
+	}
+
+	private void close(LdapContext ctx) {
+		try { ctx.close(); }
+		catch (Exception ignore) { }
+	}
+}
@@ -48,26 +48,10 @@ public class LdapUtil {
 			return false;
 		}
 
-		initialContextFactory = initialContextFactory.trim();
-		initialContextFactory = (initialContextFactory.equals("") ? defaultContextFactory : initialContextFactory);
-
-		securityAuthentication = securityAuthentication.trim();
-		securityAuthentication = (securityAuthentication.equals("") ? defaultSecurityAuthentication : securityAuthentication);
-
-		referral = referral.trim();
-		referral = (referral.equals("") ? defaultReferral : referral);
-
-		derefAliases = derefAliases.trim();
-		derefAliases = (derefAliases.equals("") ? defaultDerefAliases : derefAliases);
-
-		Hashtable<String,String> env = new Hashtable<String,String>();
-		env.put(Context.INITIAL_CONTEXT_FACTORY, initialContextFactory);
-		env.put(Context.PROVIDER_URL, providerURL);
-		env.put(Context.SECURITY_AUTHENTICATION, securityAuthentication);
+		Hashtable<String,String> env = getEnvironment(
+				initialContextFactory, providerURL, securityAuthentication, referral, derefAliases);
 		env.put(Context.SECURITY_PRINCIPAL, securityPrincipal);
 		env.put(Context.SECURITY_CREDENTIALS, securityCredentials);
-		env.put(Context.REFERRAL, referral);
-	    env.put("java.naming.ldap.derefAliases", derefAliases);
 
 		DirContext ctx = null;
 		boolean result = true;
@@ -87,4 +71,34 @@ public class LdapUtil {
 		logger.debug("Returning authentication result: "+result);
 		return result;
     }
+
+	//Make the environment for a connection to an LDAP provider,
+	//supplying the defaults for parameters which are blank.
+	static Hashtable<String,String> getEnvironment(
+			String initialContextFactory,
+			String providerURL,
+			String securityAuthentication,
+			String referral,
+			String derefAliases) {
+
+		initialContextFactory = initialContextFactory.trim();
+		initialContextFactory = (initialContextFactory.equals("") ? defaultContextFactory : initialContextFactory);
+
+		securityAuthentication = securityAuthentication.trim();
+		securityAuthentication = (securityAuthentication.equals("") ? defaultSecurityAuthentication : securityAuthentication);
+
+		referral = referral.trim();
+		referral = (referral.equals("") ? defaultReferral : referral);
+
+		derefAliases = derefAliases.trim();
+		derefAliases = (derefAliases.equals("") ? defaultDerefAliases : derefAliases);
+
+		Hashtable<String,String> env = new Hashtable<String,String>();
+		env.put(Context.INITIAL_CONTEXT_FACTORY, initialContextFactory);
+		env.put(Context.PROVIDER_URL, providerURL);
+		env.put(Context.SECURITY_AUTHENTICATION, securityAuthentication);
+		env.put(Context.REFERRAL, referral);
+	    env.put("java.naming.ldap.derefAliases", derefAliases);
+		return env;
+	}
 }
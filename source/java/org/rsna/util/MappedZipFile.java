@@ -0,0 +1,393 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import org.apache.log4j.Logger;
+
+/**
+ * A read-only zip file which is mapped into memory. The central directory
+ * is read once when the file is opened, and entries are located without
+ * reading the file. The contents of STORED entries are returned as slices
+ * of the mapped file, without copying; the contents of DEFLATED entries are
+ * inflated from the mapped file when they are requested.
+ * <p>
+ * The file is mapped in a single buffer, so it must be smaller than 2GB.
+ * Encrypted entries and entries with other compression methods are ignored.
+ * <p>
+ * The file must not be modified while it is mapped: on Windows, a mapped
+ * file cannot be replaced or deleted, and on Linux, truncating it makes
+ * reads of the mapped contents crash the JVM with SIGBUS. The close method
+ * releases the MappedZipFile's reference to the mapping. The mapping itself
+ * is released when it is garbage collected, after any buffers obtained from
+ * getContent are no longer in use; it is not unmapped immediately, because
+ * those buffers may still be being read by other threads.
+ */
+public class MappedZipFile {
+
+	static final Logger logger = Logger.getLogger(MappedZipFile.class);
+
+	static final int LOCSIG = 0x04034b50;
+	static final int CENSIG = 0x02014b50;
+	static final int ENDSIG = 0x06054b50;
+	static final int ZIP64_ENDSIG = 0x06064b50;
+	static final int ZIP64_LOCSIG = 0x07064b50;
+	static final int LOCHDR = 30;
+	static final int CENHDR = 46;
+	static final int ENDHDR = 22;
+	static final int ZIP64_LOCHDR = 20;
+	static final int STORED = 0;
+	static final int DEFLATED = 8;
+	static final long zip64Limit = 0xFFFFFFFFL;
+
+	final File file;
+	volatile ByteBuffer map;
+	final HashMap<String,Entry> entries = new HashMap<String,Entry>();
+
+	/**
+	 * Open and map a zip file and read its central directory.
+	 * @param file the zip file.
+	 * @throws IOException if the file cannot be mapped or is not a valid zip file.
+	 */
+	public MappedZipFile(File file) throws IOException {
+		this.file = file;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new ZipException("Zip file too large to map: "+file);
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		finally { FileUtil.close(channel); }
+		readCentralDirectory();
+	}
+
+	/**
+	 * Get the zip file.
+	 * @return the zip file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Close the zip file. After this method is called, getContent
+	 * and extract fail. Buffers already obtained from getContent
+	 * remain readable.
+	 */
+	public void close() {
+		map = null;
+	}
+
+	/**
+	 * Determine whether the zip file has been closed.
+	 * @return true if close has been called; false otherwise.
+	 */
+	public boolean isClosed() {
+		return (map == null);
+	}
+
+	/**
+	 * Get the number of readable entries in the zip file.
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the names of the readable entries in the zip file.
+	 * @return the names, with '/' separators.
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * Get an entry.
+	 * @param name the name of the entry, with '/' separators.
+	 * @return the entry, or null if the zip file has no readable entry with the name.
+	 */
+	public Entry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Get the contents of an entry. For a STORED entry, the buffer is a
+	 * read-only slice of the mapped file; for a DEFLATED entry, it wraps
+	 * a new array containing the inflated contents.
+	 * @param entry an entry of this zip file.
+	 * @return a buffer positioned at the start of the contents,
+	 * with its limit at the end of the contents.
+	 * @throws IOException if the entry is corrupt or the zip file is closed.
+	 */
+	public ByteBuffer getContent(Entry entry) throws IOException {
+		if (entry.method == STORED) return getData(entry).asReadOnlyBuffer();
+		if (entry.size > Integer.MAX_VALUE) throw new ZipException("Entry too large to inflate: "+entry.name);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream((int)entry.size);
+		inflate(entry, baos);
+		return ByteBuffer.wrap(baos.toByteArray());
+	}
+
+	/**
+	 * Write the contents of an entry to a file, replacing the file if it exists.
+	 * If the contents cannot be written completely, the file is deleted.
+	 * @param entry an entry of this zip file.
+	 * @param outFile the file.
+	 * @return true if the file was written; false otherwise.
+	 */
+	public boolean extract(Entry entry, File outFile) {
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(outFile);
+			if (entry.method == STORED) {
+				ByteBuffer data = getData(entry);
+				FileChannel channel = out.getChannel();
+				while (data.hasRemaining()) channel.write(data);
+			}
+			else inflate(entry, out);
+			out.close();
+			if (entry.time != -1) outFile.setLastModified(entry.time);
+			return true;
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to extract "+entry.name+" from "+file, ex);
+			FileUtil.close(out);
+			outFile.delete();
+			return false;
+		}
+	}
+
+	//Get a slice of the map containing the (possibly compressed) data of an entry.
+	private ByteBuffer getData(Entry entry) throws IOException {
+		ByteBuffer mapped = map;
+		if (mapped == null) throw new ZipException("Zip file closed: "+file);
+		ByteBuffer buf = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		long pos = entry.offset;
+		if ((pos + LOCHDR > buf.limit()) || (buf.getInt((int)pos) != LOCSIG)) {
+			throw new ZipException("Invalid local header for "+entry.name);
+		}
+		long start = pos + LOCHDR + getShort(buf, pos + 26) + getShort(buf, pos + 28);
+		long end = start + entry.csize;
+		if (end > buf.limit()) throw new ZipException("Truncated data for "+entry.name);
+		buf.limit((int)end);
+		buf.position((int)start);
+		return buf.slice();
+	}
+
+	//Inflate the data of an entry into a stream, checking its length and CRC.
+	private void inflate(Entry entry, OutputStream out) throws IOException {
+		Inflater inflater = new Inflater(true);
+		byte[] buffer = BufferPool.getBuffer();
+		try {
+			inflater.setInput(getData(entry));
+			CRC32 crc = new CRC32();
+			long total = 0;
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0) {
+					if (inflater.needsInput() || inflater.needsDictionary()) break;
+					continue;
+				}
+				crc.update(buffer, 0, n);
+				out.write(buffer, 0, n);
+				total += n;
+			}
+			if ((total != entry.size) || (crc.getValue() != entry.crc)) {
+				throw new ZipException("Invalid contents for "+entry.name);
+			}
+		}
+		catch (java.util.zip.DataFormatException ex) {
+			throw new ZipException("Invalid deflate data for "+entry.name);
+		}
+		finally {
+			inflater.end();
+			BufferPool.releaseBuffer(buffer);
+		}
+	}
+
+	//Find the end record, using the ZIP64 end record if there is one,
+	//and read the entries of the central directory.
+	private void readCentralDirectory() throws IOException {
+		ByteBuffer buf = map;
+		int limit = buf.limit();
+		int end = -1;
+		for (int i=limit-ENDHDR; (i>=0) && (i>=limit-ENDHDR-0xFFFF); i--) {
+			if ((buf.getInt(i) == ENDSIG) && (i + ENDHDR + getShort(buf, i + 20) <= limit)) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) throw new ZipException("No end of central directory record in "+file);
+		long count = getShort(buf, end + 10);
+		long cenSize = getInt(buf, end + 12);
+		long cenOffset = getInt(buf, end + 16);
+		int loc = end - ZIP64_LOCHDR;
+		if ((loc >= 0) && (buf.getInt(loc) == ZIP64_LOCSIG)) {
+			long end64 = buf.getLong(loc + 8);
+			if ((end64 >= 0) && (end64 + 56 <= loc) && (buf.getInt((int)end64) == ZIP64_ENDSIG)) {
+				count = buf.getLong((int)end64 + 32);
+				cenSize = buf.getLong((int)end64 + 40);
+				cenOffset = buf.getLong((int)end64 + 48);
+			}
+		}
+		if ((cenOffset < 0) || (cenSize < 0) || (cenOffset + cenSize > end)) {
+			throw new ZipException("Invalid central directory in "+file);
+		}
+		int pos = (int)cenOffset;
+		int cenEnd = (int)(cenOffset + cenSize);
+		for (long i=0; i<count; i++) {
+			if ((pos + CENHDR > cenEnd) || (buf.getInt(pos) != CENSIG)) {
+				throw new ZipException("Invalid central directory entry in "+file);
+			}
+			int flags = getShort(buf, pos + 8);
+			int method = getShort(buf, pos + 10);
+			int nameLength = getShort(buf, pos + 28);
+			int extraLength = getShort(buf, pos + 30);
+			int commentLength = getShort(buf, pos + 32);
+			int next = pos + CENHDR + nameLength + extraLength + commentLength;
+			if (next > cenEnd) throw new ZipException("Invalid central directory entry in "+file);
+
+			byte[] nameBytes = new byte[nameLength];
+			ByteBuffer dup = buf.duplicate();
+			dup.position(pos + CENHDR);
+			dup.get(nameBytes);
+			String name = new String(nameBytes, FileUtil.utf8);
+
+			Entry entry = new Entry(name);
+			entry.method = method;
+			entry.crc = getInt(buf, pos + 16);
+			entry.csize = getInt(buf, pos + 20);
+			entry.size = getInt(buf, pos + 24);
+			entry.offset = getInt(buf, pos + 42);
+			entry.time = dosToJavaTime(getShort(buf, pos + 14), getShort(buf, pos + 12));
+			readExtra(buf, pos + CENHDR + nameLength, extraLength, entry);
+
+			boolean readable = ((flags & 1) == 0) && ((method == STORED) || (method == DEFLATED));
+			if (readable && !name.endsWith("/")) entries.put(name, entry);
+			pos = next;
+		}
+	}
+
+	//Read the ZIP64 sizes and offset and the extended timestamp
+	//from the extra field of a central directory entry.
+	private static void readExtra(ByteBuffer buf, int pos, int length, Entry entry) {
+		int end = pos + length;
+		while (pos + 4 <= end) {
+			int id = getShort(buf, pos);
+			int size = getShort(buf, pos + 2);
+			int data = pos + 4;
+			if (data + size > end) break;
+			if (id == 0x0001) {
+				int p = data;
+				if ((entry.size == zip64Limit) && (p + 8 <= data + size)) { entry.size = buf.getLong(p); p += 8; }
+				if ((entry.csize == zip64Limit) && (p + 8 <= data + size)) { entry.csize = buf.getLong(p); p += 8; }
+				if ((entry.offset == zip64Limit) && (p + 8 <= data + size)) { entry.offset = buf.getLong(p); p += 8; }
+			}
+			else if ((id == 0x5455) && (size >= 5) && ((buf.get(data) & 1) != 0)) {
+				entry.time = getInt(buf, data + 1) * 1000;
+			}
+			pos = data + size;
+		}
+	}
+
+	private static int getShort(ByteBuffer buf, long pos) {
+		return buf.getShort((int)pos) & 0xFFFF;
+	}
+
+	private static long getInt(ByteBuffer buf, long pos) {
+		return buf.getInt((int)pos) & 0xFFFFFFFFL;
+	}
+
+	//Convert a DOS date and time to milliseconds, as java.util.zip does.
+	private static long dosToJavaTime(int date, int time) {
+		try {
+			LocalDateTime ldt = LocalDateTime.of(
+				((date >> 9) & 0x7f) + 1980,
+				(date >> 5) & 0x0f,
+				date & 0x1f,
+				(time >> 11) & 0x1f,
+				(time >> 5) & 0x3f,
+				(time << 1) & 0x3e);
+			return ldt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		}
+		catch (Exception ex) { return -1; }
+	}
+
+	/**
+	 * An entry in a MappedZipFile.
+	 */
+	public static class Entry {
+		final String name;
+		int method;
+		long crc;
+		long csize;
+		long size;
+		long offset;
+		long time;
+
+		Entry(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Get the name of the entry.
+		 * @return the name, with '/' separators.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Determine whether the entry is stored without compression.
+		 * @return true if the entry is STORED; false if it is DEFLATED.
+		 */
+		public boolean isStored() {
+			return (method == STORED);
+		}
+
+		/**
+		 * Get the uncompressed size of the entry.
+		 * @return the size in bytes.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Get the CRC-32 of the uncompressed contents of the entry.
+		 * @return the CRC.
+		 */
+		public long getCrc() {
+			return crc;
+		}
+
+		/**
+		 * Get the modification time of the entry.
+		 * @return the time in milliseconds, or -1 if it is not specified.
+		 */
+		public long getTime() {
+			return time;
+		}
+	}
+}
@@ -24,6 +24,7 @@ public class OpenAMUtil {
 	static final String roleEquals = "userdetails.role=";
 	static final String idEquals = "id=";
 	public static final String ROLESKEY = "ROLESKEY";
+	static final int timeout = 10000; //ms for connecting to and reading from the server
 
 	/**
 	 * Get the OpenAM token cookie name.
@@ -46,7 +47,7 @@ public class OpenAMUtil {
 	 * @return true if the token is valid; false otherwise.
 	 */
     public static boolean validate(String baseURL, String token) {
-		String result = doPost( baseURL + "/identity/isTokenValid", "tokenid="+token );
+		String result = doPost( baseURL + "/identity/isTokenValid", "tokenid="+encode(token) );
 		if (result.startsWith(booleanEquals)) {
 			result = result.substring(booleanEquals.length());
 		}
@@ -60,7 +61,7 @@ public class OpenAMUtil {
 	 * @return the attributes.
 	 */
     public static String getAttributes(String baseURL, String token) {
-		String result = doPost( baseURL + "/identity/attributes", "subjectid="+token );
+		String result = doPost( baseURL + "/identity/attributes", "subjectid="+encode(token) );
 		return result;
 	}
 
@@ -108,7 +109,7 @@ public class OpenAMUtil {
 	 * @return true if the token has the role; false otherwise.
 	 */
     public static boolean authorize(String baseURL, String role, String token) {
-		String postBody = "uri="+role+"&action=GET&subjectid="+token;
+		String postBody = "uri="+encode(role)+"&action=GET&subjectid="+encode(token);
 		String result = doPost( baseURL + "/identity/authorize", postBody );
 		if (result.startsWith(booleanEquals)) {
 			result = result.substring(booleanEquals.length());
@@ -171,6 +172,9 @@ public class OpenAMUtil {
 		return baseURL + "/UI/Logout";
 	}
 
+	//Make a GET request, returning the text of the response if the status is
+	//200, or the empty string otherwise. The response is always consumed so
+	//that the connection can be kept alive and reused for subsequent calls.
 	private static String doGet(String urlString) {
 		String text = "";
 		try {
@@ -178,35 +182,54 @@ public class OpenAMUtil {
 			HttpURLConnection conn = HttpUtil.getConnection(url);
 			conn.setRequestMethod("GET");
 			conn.setDoOutput(false);
+			conn.setConnectTimeout(timeout);
+			conn.setReadTimeout(timeout);
 			conn.connect();
-			if (conn.getResponseCode() == 200) {
-				text = FileUtil.getText( conn.getInputStream() );
-			}
+			text = getResponseText(conn);
 		}
 		catch (Exception unable) { }
 		return text.trim();
 	}
 
+	//Make a POST request of a form-urlencoded body, handling the response as in doGet.
 	private static String doPost(String urlString, String postBody) {
 		String text = "";
-		BufferedWriter writer = null;
+		OutputStream out = null;
 		try {
 			URL url = new URI(urlString).toURL();
 			HttpURLConnection conn = HttpUtil.getConnection(url);
 			conn.setRequestMethod("POST");
 			conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
 			conn.setDoOutput(true);
+			conn.setConnectTimeout(timeout);
+			conn.setReadTimeout(timeout);
+			byte[] bytes = postBody.getBytes(FileUtil.utf8);
+			conn.setFixedLengthStreamingMode(bytes.length);
 			conn.connect();
-			writer = new BufferedWriter( new OutputStreamWriter( conn.getOutputStream(), FileUtil.utf8 ) );
-			writer.write(postBody);
-			writer.flush();
-			if (conn.getResponseCode() == 200) {
-				text = FileUtil.getText( conn.getInputStream() );
-			}
+			out = conn.getOutputStream();
+			out.write(bytes);
+			out.flush();
+			text = getResponseText(conn);
 		}
 		catch (Exception unable) { }
-		finally { FileUtil.close(writer); }
+		finally { FileUtil.close(out); }
 		return text.trim();
 	}
 
+	//Read the response, returning the text if the status is 200.
+	private static String getResponseText(HttpURLConnection conn) throws Exception {
+		if (conn.getResponseCode() == 200) {
+			return FileUtil.getText( conn.getInputStream() );
+		}
+		InputStream err = conn.getErrorStream();
+		if (err != null) FileUtil.getText(err);
+		return "";
+	}
+
+	//Encode a token for use in a form-urlencoded body.
+	private static String encode(String token) {
+		try { return URLEncoder.encode(token, "UTF-8"); }
+		catch (Exception ex) { return token; }
+	}
+
 }
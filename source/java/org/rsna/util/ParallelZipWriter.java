@@ -0,0 +1,540 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+import org.apache.log4j.Logger;
+
+/**
+ * A writer for zip archives which compresses on all the processors.
+ * Each file is read in blocks on the calling thread, and the blocks are
+ * deflated concurrently on a shared pool of threads. Each block is primed
+ * with the end of the preceding block and ends on a byte boundary, so the
+ * compressed blocks join to form a single deflate stream for the entry.
+ * Blocks of successive entries are compressed concurrently as well, and
+ * the results are written to the output stream in order.
+ * <p>
+ * Files whose content is already compressed (e.g., JPEG, zip, MP4) are
+ * written in STORED mode. Entries, offsets, and archives which exceed
+ * the limits of the original zip format are written in ZIP64 format.
+ * The archives can be read with java.util.zip.ZipFile and ZipInputStream.
+ */
+public class ParallelZipWriter {
+
+	static final Logger logger = Logger.getLogger(ParallelZipWriter.class);
+
+	static final int blockSize = 1024 * 1024;
+	static final int dictionarySize = 32 * 1024;
+	static final int threads = Runtime.getRuntime().availableProcessors();
+	static final int maxPendingParts = 2 * threads + 4;
+	static final long zip64Limit = 0xFFFFFFFFL;
+
+	static final int STORED = 0;
+	static final int DEFLATED = 8;
+
+	static final int DESCRIPTOR_FLAG = 0x0008;
+	static final int UTF8_FLAG = 0x0800;
+
+	/** The extensions of files written in STORED mode by default. */
+	public static final String[] storedExtensions = {
+		"jpg", "jpeg", "jp2", "j2k", "png", "gif",
+		"zip", "jar", "gz", "tgz", "bz2", "xz", "7z",
+		"mp3", "mp4", "m4v", "mov", "avi", "mkv", "webm"
+	};
+
+	//The threads which compress blocks, shared by all writers.
+	static final ExecutorService executor = Executors.newFixedThreadPool(
+		threads,
+		new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ParallelZipWriter-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}
+	);
+
+	//The Deflater for each compression thread, reset for each block.
+	static final ThreadLocal<Deflater> deflaters =
+		new ThreadLocal<Deflater>() {
+			protected Deflater initialValue() {
+				return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			}
+		};
+
+	final CountingOutputStream out;
+	final LinkedList<Entry> entries = new LinkedList<Entry>();
+	final HashSet<String> names = new HashSet<String>();
+	final LinkedList<Part> parts = new LinkedList<Part>();
+	final HashSet<String> stored = new HashSet<String>(Arrays.asList(storedExtensions));
+	int level = Deflater.DEFAULT_COMPRESSION;
+	boolean closed = false;
+
+	/**
+	 * Construct a writer for a zip archive.
+	 * @param out the stream to receive the archive. The stream
+	 * is closed when the writer is closed.
+	 */
+	public ParallelZipWriter(OutputStream out) {
+		this.out = new CountingOutputStream(new BufferedOutputStream(out, 64 * 1024));
+	}
+
+	/**
+	 * Set the compression level for DEFLATED entries.
+	 * @param level the level (0-9, or -1 for the default).
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Set the extensions of files to be written in STORED mode,
+	 * replacing the default list.
+	 * @param extensions the extensions, without the leading period.
+	 */
+	public void setStoredExtensions(String[] extensions) {
+		stored.clear();
+		for (String ext : extensions) stored.add(ext.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Add a directory entry.
+	 * @param name the name of the entry. A slash is appended if necessary.
+	 * @param time the last-modified time of the directory.
+	 * @throws IOException if the entry is a duplicate or it cannot be written.
+	 */
+	public void addDirectory(String name, long time) throws IOException {
+		if (!name.endsWith("/")) name += "/";
+		Entry entry = newEntry(name, STORED, time);
+		addPart(new Part(entry, Part.HEADER, null));
+	}
+
+	/**
+	 * Add a file. The file is written in STORED mode if its extension
+	 * is in the list of stored extensions, and DEFLATED mode otherwise.
+	 * @param file the file.
+	 * @param name the name of the entry.
+	 * @throws IOException if the entry is a duplicate or the file cannot be read
+	 * or written.
+	 */
+	public void addFile(File file, String name) throws IOException {
+		addFile(file, name, isStored(name));
+	}
+
+	/**
+	 * Add a file.
+	 * @param file the file.
+	 * @param name the name of the entry.
+	 * @param store true if the file is to be written in STORED mode;
+	 * false if it is to be written in DEFLATED mode.
+	 * @throws IOException if the entry is a duplicate or the file cannot be read
+	 * or written.
+	 */
+	public void addFile(File file, String name, boolean store) throws IOException {
+		Entry entry = newEntry(name, (store ? STORED : DEFLATED), file.lastModified());
+		if (store) addStoredFile(file, entry);
+		else addDeflatedFile(file, entry);
+	}
+
+	/**
+	 * Write all pending data and the central directory, and close the output stream.
+	 * @throws IOException if the archive cannot be written.
+	 */
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			while (!parts.isEmpty()) writePart(parts.removeFirst());
+			writeCentralDirectory();
+			out.flush();
+		}
+		finally {
+			for (Part part : parts) {
+				if (part.data != null) part.data.cancel(false);
+			}
+			out.close();
+		}
+	}
+
+	//Determine whether a name has one of the stored extensions.
+	boolean isStored(String name) {
+		int k = name.lastIndexOf('.');
+		if ((k < 0) || (k < name.lastIndexOf('/'))) return false;
+		return stored.contains(name.substring(k+1).toLowerCase(Locale.ENGLISH));
+	}
+
+	private Entry newEntry(String name, int method, long time) throws IOException {
+		if (closed) throw new IOException("Writer closed");
+		name = name.replace('\\', '/');
+		if (!names.add(name)) throw new ZipException("duplicate entry: " + name);
+		Entry entry = new Entry(name, method, time);
+		entries.add(entry);
+		return entry;
+	}
+
+	//Read a file in blocks, queuing a compression task for each block.
+	//The length of the file is taken when it is opened, and the last block
+	//is marked for the end of the deflate stream.
+	private void addDeflatedFile(File file, Entry entry) throws IOException {
+		InputStream in = new FileInputStream(file);
+		addPart(new Part(entry, Part.HEADER, null));
+		try {
+			CRC32 crc = new CRC32();
+			long remaining = file.length();
+			byte[] previous = null;
+			do {
+				byte[] block = new byte[(int)Math.min(blockSize, remaining)];
+				int n = readBlock(in, block);
+				if (n != block.length) throw new IOException("File changed while zipping: " + file);
+				crc.update(block, 0, n);
+				entry.size += n;
+				remaining -= n;
+				boolean last = (remaining == 0);
+				addPart(new Part(entry, Part.DATA, executor.submit(new DeflateTask(previous, block, last, level))));
+				previous = block;
+			} while (remaining > 0);
+			entry.crc = crc.getValue();
+		}
+		finally { in.close(); }
+		addPart(new Part(entry, Part.DESCRIPTOR, null));
+	}
+
+	//Read a file once to compute its CRC, which must precede the data of
+	//a STORED entry, and again to queue its blocks.
+	private void addStoredFile(File file, Entry entry) throws IOException {
+		byte[] block = new byte[blockSize];
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = readBlock(in, block)) > 0) {
+				crc.update(block, 0, n);
+				entry.size += n;
+			}
+		}
+		finally { in.close(); }
+		entry.crc = crc.getValue();
+		entry.csize = entry.size;
+		addPart(new Part(entry, Part.HEADER, null));
+		in = new FileInputStream(file);
+		try {
+			long remaining = entry.size;
+			while (remaining > 0) {
+				byte[] data = new byte[(int)Math.min(blockSize, remaining)];
+				int n = readBlock(in, data);
+				if (n != data.length) throw new IOException("File changed while zipping: " + file);
+				addPart(new Part(entry, Part.STORED_DATA, new CompletedFuture(data)));
+				remaining -= n;
+			}
+		}
+		finally { in.close(); }
+	}
+
+	//Read until the block is full or the end of the stream is reached.
+	private int readBlock(InputStream in, byte[] block) throws IOException {
+		int total = 0;
+		int n;
+		while ((total < block.length) && ((n = in.read(block, total, block.length - total)) != -1)) {
+			total += n;
+		}
+		return total;
+	}
+
+	//Queue a part, writing the oldest parts if too many are pending.
+	private void addPart(Part part) throws IOException {
+		parts.add(part);
+		while (parts.size() > maxPendingParts) writePart(parts.removeFirst());
+	}
+
+	private void writePart(Part part) throws IOException {
+		Entry entry = part.entry;
+		if (part.type == Part.HEADER) {
+			entry.offset = out.count;
+			writeLocalHeader(entry);
+		}
+		else if (part.type == Part.DESCRIPTOR) {
+			writeDescriptor(entry);
+		}
+		else {
+			byte[] data;
+			try { data = part.data.get(); }
+			catch (Exception ex) { throw new IOException("Unable to compress " + entry.name, ex); }
+			out.write(data);
+			if (part.type == Part.DATA) entry.csize += data.length;
+		}
+	}
+
+	private void writeLocalHeader(Entry entry) throws IOException {
+		boolean descriptor = (entry.method == DEFLATED);
+		boolean zip64 = !descriptor && (entry.size >= zip64Limit);
+		byte[] name = entry.name.getBytes(FileUtil.utf8);
+		writeInt(0x04034b50);
+		writeShort(zip64 ? 45 : 20);
+		writeShort(UTF8_FLAG | (descriptor ? DESCRIPTOR_FLAG : 0));
+		writeShort(entry.method);
+		writeInt(entry.dosTime);
+		if (descriptor) {
+			writeInt(0);
+			writeInt(0);
+			writeInt(0);
+		}
+		else {
+			writeInt(entry.crc);
+			writeInt(zip64 ? zip64Limit : entry.csize);
+			writeInt(zip64 ? zip64Limit : entry.size);
+		}
+		writeShort(name.length);
+		writeShort(zip64 ? 20 : 0);
+		out.write(name);
+		if (zip64) {
+			writeShort(0x0001);
+			writeShort(16);
+			writeLong(entry.size);
+			writeLong(entry.csize);
+		}
+	}
+
+	private void writeDescriptor(Entry entry) throws IOException {
+		writeInt(0x08074b50);
+		writeInt(entry.crc);
+		if ((entry.csize >= zip64Limit) || (entry.size >= zip64Limit)) {
+			writeLong(entry.csize);
+			writeLong(entry.size);
+		}
+		else {
+			writeInt(entry.csize);
+			writeInt(entry.size);
+		}
+	}
+
+	private void writeCentralDirectory() throws IOException {
+		long start = out.count;
+		for (Entry entry : entries) {
+			boolean size64 = (entry.size >= zip64Limit);
+			boolean csize64 = (entry.csize >= zip64Limit);
+			boolean offset64 = (entry.offset >= zip64Limit);
+			int extraLength = (size64 ? 8 : 0) + (csize64 ? 8 : 0) + (offset64 ? 8 : 0);
+			boolean zip64 = (extraLength > 0);
+			byte[] name = entry.name.getBytes(FileUtil.utf8);
+			writeInt(0x02014b50);
+			writeShort(zip64 ? 45 : 20);
+			writeShort(zip64 ? 45 : 20);
+			writeShort(UTF8_FLAG | ((entry.method == DEFLATED) ? DESCRIPTOR_FLAG : 0));
+			writeShort(entry.method);
+			writeInt(entry.dosTime);
+			writeInt(entry.crc);
+			writeInt(csize64 ? zip64Limit : entry.csize);
+			writeInt(size64 ? zip64Limit : entry.size);
+			writeShort(name.length);
+			writeShort(zip64 ? extraLength + 4 : 0);
+			writeShort(0); //comment length
+			writeShort(0); //disk number
+			writeShort(0); //internal attributes
+			writeInt(0);   //external attributes
+			writeInt(offset64 ? zip64Limit : entry.offset);
+			out.write(name);
+			if (zip64) {
+				writeShort(0x0001);
+				writeShort(extraLength);
+				if (size64) writeLong(entry.size);
+				if (csize64) writeLong(entry.csize);
+				if (offset64) writeLong(entry.offset);
+			}
+		}
+		long end = out.count;
+		long size = end - start;
+		int count = entries.size();
+		boolean zip64 = (count >= 0xFFFF) || (size >= zip64Limit) || (start >= zip64Limit);
+		if (zip64) {
+			//ZIP64 end of central directory record
+			writeInt(0x06064b50);
+			writeLong(44);
+			writeShort(45);
+			writeShort(45);
+			writeInt(0);
+			writeInt(0);
+			writeLong(count);
+			writeLong(count);
+			writeLong(size);
+			writeLong(start);
+			//ZIP64 end of central directory locator
+			writeInt(0x07064b50);
+			writeInt(0);
+			writeLong(end);
+			writeInt(1);
+		}
+		writeInt(0x06054b50);
+		writeShort(0);
+		writeShort(0);
+		writeShort(zip64 ? 0xFFFF : count);
+		writeShort(zip64 ? 0xFFFF : count);
+		writeInt(zip64 ? zip64Limit : size);
+		writeInt(zip64 ? zip64Limit : start);
+		writeShort(0);
+	}
+
+	private void writeShort(int v) throws IOException {
+		out.write(v & 0xff);
+		out.write((v >>> 8) & 0xff);
+	}
+
+	private void writeInt(long v) throws IOException {
+		writeShort((int)(v & 0xffff));
+		writeShort((int)((v >>> 16) & 0xffff));
+	}
+
+	private void writeLong(long v) throws IOException {
+		writeInt(v & 0xffffffffL);
+		writeInt(v >>> 32);
+	}
+
+	//Convert a Java time to the MS-DOS date and time format,
+	//with the date in the high 16 bits.
+	static long getDosTime(long time) {
+		LocalDateTime ldt = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+		int year = ldt.getYear();
+		if (year < 1980) return (1 << 21) | (1 << 16);
+		return ((long)(year - 1980) << 25)
+				| (ldt.getMonthValue() << 21)
+				| (ldt.getDayOfMonth() << 16)
+				| (ldt.getHour() << 11)
+				| (ldt.getMinute() << 5)
+				| (ldt.getSecond() >> 1);
+	}
+
+	//An entry in the archive.
+	static class Entry {
+		final String name;
+		final int method;
+		final long dosTime;
+		long crc = 0;
+		long size = 0;
+		long csize = 0;
+		long offset = 0;
+
+		Entry(String name, int method, long time) {
+			this.name = name;
+			this.method = method;
+			this.dosTime = getDosTime(time);
+		}
+	}
+
+	//A piece of the archive waiting to be written.
+	static class Part {
+		static final int HEADER = 0;
+		static final int DATA = 1;
+		static final int STORED_DATA = 2;
+		static final int DESCRIPTOR = 3;
+
+		final Entry entry;
+		final int type;
+		final Future<byte[]> data;
+
+		Part(Entry entry, int type, Future<byte[]> data) {
+			this.entry = entry;
+			this.type = type;
+			this.data = data;
+		}
+	}
+
+	//A task to deflate one block of an entry. The Deflater is primed with
+	//the end of the preceding block, and the output ends with a sync flush
+	//(or, for the last block, the end of the stream) so the blocks can be
+	//concatenated.
+	static class DeflateTask implements Callable<byte[]> {
+		final byte[] previous;
+		final byte[] block;
+		final boolean last;
+		final int level;
+
+		DeflateTask(byte[] previous, byte[] block, boolean last, int level) {
+			this.previous = previous;
+			this.block = block;
+			this.last = last;
+			this.level = level;
+		}
+
+		public byte[] call() {
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setLevel(level);
+			if (previous != null) {
+				deflater.setDictionary(previous, previous.length - dictionarySize, dictionarySize);
+			}
+			deflater.setInput(block);
+			if (last) deflater.finish();
+			byte[] buffer = new byte[block.length + (block.length >> 8) + 64];
+			int total = 0;
+			while (true) {
+				int n = last ? deflater.deflate(buffer, total, buffer.length - total)
+							 : deflater.deflate(buffer, total, buffer.length - total, Deflater.SYNC_FLUSH);
+				total += n;
+				if (last ? deflater.finished() : (total < buffer.length)) break;
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			return Arrays.copyOf(buffer, total);
+		}
+	}
+
+	//A Future for data which is already available.
+	static class CompletedFuture implements Future<byte[]> {
+		final byte[] data;
+		CompletedFuture(byte[] data) { this.data = data; }
+		public boolean cancel(boolean mayInterrupt) { return false; }
+		public boolean isCancelled() { return false; }
+		public boolean isDone() { return true; }
+		public byte[] get() { return data; }
+		public byte[] get(long timeout, java.util.concurrent.TimeUnit unit) { return data; }
+	}
+
+	//An OutputStream which counts the bytes written.
+	static class CountingOutputStream extends OutputStream {
+		final OutputStream out;
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+		public void flush() throws IOException {
+			out.flush();
+		}
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.util;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.apache.log4j.Logger;
+
+/**
+ * Hashes and verifies passwords using a set of versioned schemes.
+ * New passwords are hashed with the default scheme. Stored hashes are
+ * verified with the scheme which produced them, so hashes made by older
+ * schemes (or with a lower cost) remain valid and can be replaced with
+ * a current hash the next time the user supplies the password.
+ * <p>
+ * Two schemes are registered: "md5", the unsalted base-10 MD5 hash
+ * produced by DigestUtil.hash, and "pbkdf2", which produces hashes of
+ * the form $pbkdf2-sha256$iterations$salt$hash. Other schemes can be
+ * added with the register method.
+ */
+public class PasswordHash {
+
+	static final Logger logger = Logger.getLogger(PasswordHash.class);
+
+	static final CopyOnWriteArrayList<Scheme> schemes = new CopyOnWriteArrayList<Scheme>();
+	static volatile Scheme defaultScheme;
+
+	static {
+		register(new MD5Scheme());
+		defaultScheme = new PBKDF2Scheme(PBKDF2Scheme.defaultIterations);
+		register(defaultScheme);
+	}
+
+	/**
+	 * The interface for a password hash scheme.
+	 */
+	public interface Scheme {
+		/**
+		 * Get the name by which the scheme is selected.
+		 * @return the name of the scheme.
+		 */
+		public String getName();
+
+		/**
+		 * Hash a password.
+		 * @param password the plaintext password.
+		 * @return the hash, in a form which the recognizes method accepts.
+		 */
+		public String hash(String password);
+
+		/**
+		 * Determine whether a stored hash was produced by this scheme.
+		 * @param hash the stored hash.
+		 * @return true if the scheme can verify passwords against the hash.
+		 */
+		public boolean recognizes(String hash);
+
+		/**
+		 * Verify a password against a hash produced by this scheme.
+		 * @param password the plaintext password.
+		 * @param hash the stored hash.
+		 * @return true if the password matches the hash; false otherwise.
+		 */
+		public boolean verify(String password, String hash);
+
+		/**
+		 * Determine whether a hash produced by this scheme uses
+		 * the scheme's current parameters (e.g., its cost).
+		 * @param hash the stored hash.
+		 * @return true if the hash is current; false if it should be replaced.
+		 */
+		public boolean isCurrent(String hash);
+	}
+
+	/**
+	 * Add a scheme, replacing any registered scheme with the same name.
+	 * @param scheme the scheme.
+	 */
+	public static synchronized void register(Scheme scheme) {
+		for (Scheme s : schemes) {
+			if (s.getName().equals(scheme.getName())) schemes.remove(s);
+		}
+		schemes.add(scheme);
+	}
+
+	/**
+	 * Get a registered scheme.
+	 * @param name the name of the scheme.
+	 * @return the scheme, or null if no scheme with the name is registered.
+	 */
+	public static Scheme getScheme(String name) {
+		for (Scheme scheme : schemes) {
+			if (scheme.getName().equals(name)) return scheme;
+		}
+		return null;
+	}
+
+	/**
+	 * Set the scheme used to hash new passwords.
+	 * @param name the name of a registered scheme. For the "pbkdf2"
+	 * scheme, a new instance is registered with the specified cost.
+	 * @param cost the number of iterations for the "pbkdf2" scheme,
+	 * or zero to use the default (20000). The cost is ignored
+	 * for other schemes.
+	 * @return true if the scheme was set; false if it is not registered.
+	 */
+	public static boolean setDefaultScheme(String name, int cost) {
+		if (name.equals(PBKDF2Scheme.name)) {
+			register(new PBKDF2Scheme((cost > 0) ? cost : PBKDF2Scheme.defaultIterations));
+		}
+		Scheme scheme = getScheme(name);
+		if (scheme == null) {
+			logger.warn("Unknown password hash scheme: "+name);
+			return false;
+		}
+		defaultScheme = scheme;
+		return true;
+	}
+
+	/**
+	 * Get the scheme used to hash new passwords.
+	 * @return the default scheme.
+	 */
+	public static Scheme getDefaultScheme() {
+		return defaultScheme;
+	}
+
+	/**
+	 * Hash a password with the default scheme.
+	 * @param password the plaintext password.
+	 * @return the hash.
+	 */
+	public static String hash(String password) {
+		return defaultScheme.hash(password);
+	}
+
+	/**
+	 * Verify a password against a stored hash produced by any registered scheme.
+	 * @param password the plaintext password.
+	 * @param hash the stored hash.
+	 * @return true if the password matches the hash; false otherwise,
+	 * including when no registered scheme recognizes the hash.
+	 */
+	public static boolean verify(String password, String hash) {
+		if ((password == null) || (hash == null)) return false;
+		for (Scheme scheme : schemes) {
+			if (scheme.recognizes(hash)) return scheme.verify(password, hash);
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether a stored hash should be replaced because it was
+	 * not produced by the default scheme with its current parameters.
+	 * @param hash the stored hash.
+	 * @return true if the hash should be replaced; false otherwise.
+	 */
+	public static boolean needsUpgrade(String hash) {
+		Scheme scheme = defaultScheme;
+		return !scheme.recognizes(hash) || !scheme.isCurrent(hash);
+	}
+
+	//Compare two strings in a time which does not depend
+	//on the position of the first difference.
+	static boolean equals(String a, String b) {
+		return MessageDigest.isEqual(a.getBytes(FileUtil.utf8), b.getBytes(FileUtil.utf8));
+	}
+
+	//The unsalted base-10 MD5 hash used by earlier releases.
+	static class MD5Scheme implements Scheme {
+		public String getName() {
+			return "md5";
+		}
+		public String hash(String password) {
+			return DigestUtil.hash(password);
+		}
+		public boolean recognizes(String hash) {
+			if (hash.length() == 0) return false;
+			for (int i=0; i<hash.length(); i++) {
+				char c = hash.charAt(i);
+				if ((c < '0') || (c > '9')) return false;
+			}
+			return true;
+		}
+		public boolean verify(String password, String hash) {
+			return PasswordHash.equals(hash(password), hash);
+		}
+		public boolean isCurrent(String hash) {
+			return true;
+		}
+	}
+
+	//PBKDF2 with HMAC-SHA256 and a random 16-byte salt.
+	static class PBKDF2Scheme implements Scheme {
+		static final String name = "pbkdf2";
+		static final String prefix = "$pbkdf2-sha256$";
+		static final String algorithm = "PBKDF2WithHmacSHA256";
+		static final int defaultIterations = 20000;
+		static final int saltLength = 16;
+		static final int keyLength = 256; //bits
+		static final SecureRandom random = new SecureRandom();
+
+		final int iterations;
+
+		PBKDF2Scheme(int iterations) {
+			this.iterations = iterations;
+		}
+		public String getName() {
+			return name;
+		}
+		public String hash(String password) {
+			byte[] salt = new byte[saltLength];
+			random.nextBytes(salt);
+			return prefix + iterations + "$"
+						+ Base64.encodeToString(salt) + "$"
+						+ Base64.encodeToString(derive(password, salt, iterations));
+		}
+		public boolean recognizes(String hash) {
+			return hash.startsWith(prefix);
+		}
+		public boolean verify(String password, String hash) {
+			String[] parts = hash.substring(prefix.length()).split("\\$");
+			if (parts.length != 3) return false;
+			int n = StringUtil.getInt(parts[0], 0);
+			if (n <= 0) return false;
+			try {
+				byte[] salt = Base64.decode(parts[1]);
+				byte[] key = derive(password, salt, n);
+				return (key != null) && MessageDigest.isEqual(key, Base64.decode(parts[2]));
+			}
+			catch (Exception ex) { return false; }
+		}
+		public boolean isCurrent(String hash) {
+			return hash.startsWith(prefix + iterations + "$");
+		}
+		private byte[] derive(String password, byte[] salt, int n) {
+			PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, n, keyLength);
+			try { return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded(); }
+			catch (Exception ex) {
+				logger.warn("Unable to hash the password", ex);
+				return null;
+			}
+			finally { spec.clearPassword(); }
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * An Executor that runs each task on its own virtual thread, limiting
+ * the number of tasks running concurrently with a Semaphore. Tasks
+ * waiting for a permit are counted as queued. Virtual threads are
+ * obtained through reflection so the class can be compiled and run on
+ * JVMs that do not support them; on such JVMs, the tasks run on a fixed
+ * pool of maxThreads platform threads, and tasks waiting for a pool
+ * thread are counted as queued.
+ */
+public class VirtualThreadExecutor implements Executor {
+
+	static final Logger logger = Logger.getLogger(VirtualThreadExecutor.class);
+
+	static final Method ofVirtual;
+	static final Method unstarted;
+
+	static {
+		//Thread.Builder instances are not thread-safe, so one is obtained for each thread.
+		Method ov = null;
+		Method us = null;
+		try {
+			ov = Thread.class.getMethod("ofVirtual");
+			us = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception notAvailable) { ov = null; us = null; }
+		ofVirtual = ov;
+		unstarted = us;
+	}
+
+	final String name;
+	final int maxThreads;
+	final Semaphore permits;
+	final AtomicInteger active = new AtomicInteger();
+	final AtomicInteger queued = new AtomicInteger();
+	final ThreadPoolExecutor pool; //used when virtual threads are not available
+	volatile boolean shutdown = false;
+
+	/**
+	 * Construct a VirtualThreadExecutor.
+	 * @param name the name given to the threads created by this executor.
+	 * @param maxThreads the maximum number of tasks allowed to run concurrently.
+	 */
+	public VirtualThreadExecutor(String name, int maxThreads) {
+		this.name = name;
+		this.maxThreads = Math.max(maxThreads, 1);
+		permits = new Semaphore(this.maxThreads, true);
+		if (isSupported()) pool = null;
+		else {
+			logger.warn("Virtual threads are not available in this JVM; "
+							+name+" will use a pool of "+this.maxThreads+" platform threads.");
+			pool = new ThreadPoolExecutor(
+				this.maxThreads, this.maxThreads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, VirtualThreadExecutor.this.name+"-"+count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}
+			);
+		}
+	}
+
+	/**
+	 * Determine whether the JVM supports virtual threads.
+	 * @return true if tasks run on virtual threads; false if
+	 * they run on platform threads.
+	 */
+	public static boolean isSupported() {
+		return (unstarted != null);
+	}
+
+	/**
+	 * Start a thread to run a task when a permit is available. If virtual
+	 * threads are not available, the task is queued for the pool instead.
+	 * @param task the task to run.
+	 * @throws RejectedExecutionException if the executor has been shut down.
+	 */
+	public void execute(final Runnable task) {
+		if (shutdown) throw new RejectedExecutionException(name + " executor has been shut down");
+		if (pool != null) {
+			pool.execute(task);
+			return;
+		}
+		queued.incrementAndGet();
+		Runnable wrapper = new Runnable() {
+			public void run() {
+				try { permits.acquire(); }
+				catch (InterruptedException ex) {
+					queued.decrementAndGet();
+					return;
+				}
+				queued.decrementAndGet();
+				active.incrementAndGet();
+				try { task.run(); }
+				finally {
+					active.decrementAndGet();
+					permits.release();
+				}
+			}
+		};
+		try { newThread(wrapper).start(); }
+		catch (Exception ex) {
+			queued.decrementAndGet();
+			throw new RejectedExecutionException("Unable to start a thread for "+name, ex);
+		}
+	}
+
+	private Thread newThread(Runnable runnable) throws Exception {
+		Thread thread = (Thread)unstarted.invoke(ofVirtual.invoke(null), runnable);
+		thread.setName(name);
+		return thread;
+	}
+
+	/**
+	 * Get the maximum number of tasks allowed to run concurrently.
+	 * @return the concurrency limit.
+	 */
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	/**
+	 * Get the number of tasks currently running.
+	 * @return the number of running tasks.
+	 */
+	public int getActiveCount() {
+		return (pool != null) ? pool.getActiveCount() : active.get();
+	}
+
+	/**
+	 * Get the number of tasks waiting for a permit to run.
+	 * @return the number of waiting tasks.
+	 */
+	public int getQueuedCount() {
+		return (pool != null) ? pool.getQueue().size() : queued.get();
+	}
+
+	/**
+	 * Stop accepting new tasks. Tasks already submitted are allowed to complete.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		if (pool != null) pool.shutdown();
+	}
+}
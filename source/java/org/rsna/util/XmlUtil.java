@@ -180,6 +180,30 @@ public class XmlUtil {
 		return sw.toString();
 	}
 
+	/**
+	 * General method for transformation to a stream. Transform a Source
+	 * document using a Source XSL document and an array of parameters,
+	 * writing the result to an OutputStream in the encoding specified
+	 * by the XSL document (UTF-8 by default). The stream is not closed.
+	 * The parameter array consists of a sequence of pairs of (String parametername)
+	 * followed by (Object parametervalue) in an Object[].
+	 * @param doc the document to transform.
+	 * @param xsl the XSL transformation program.
+	 * @param params the array of transformation parameters.
+	 * @param out the stream to which the transformed text is written.
+	 * @throws Exception on any error
+	 */
+	public static void transform(Source doc, Source xsl, Object[] params, OutputStream out) throws Exception {
+		TransformerFactory tFactory = TransformerFactory.newInstance();
+		Transformer transformer = tFactory.newTransformer(xsl);
+		if ((params != null) && (params.length > 1)) {
+			for (int i=0; i<params.length; i=i+2) {
+				transformer.setParameter((String)params[i], params[i+1]);
+			}
+		}
+		transformer.transform(doc, new StreamResult(out));
+	}
+
 	/**
 	 * Transform an XML file using an XSL file and an array of parameters.
 	 * The parameter array consists of a sequence of pairs of (String parametername)
@@ -0,0 +1,206 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.log4j.Logger;
+
+/**
+ * An extractor for zip files which unpacks the entries concurrently and
+ * skips entries which are already present. An existing file is considered
+ * to be current if its size and CRC match the entry. Extracted files are
+ * given the modification times of their entries, so a file which is
+ * unchanged keeps the same time from one extraction to the next.
+ */
+public class ZipExtractor {
+
+	static final Logger logger = Logger.getLogger(ZipExtractor.class);
+
+	/**
+	 * The interface for selecting the entries to extract and
+	 * naming the files into which they are extracted.
+	 */
+	public interface EntryFilter {
+		/**
+		 * Get the path of the file into which an entry is to be extracted,
+		 * or of the directory to be created for a directory entry.
+		 * @param entry an entry in the zip file.
+		 * @return the path of the file relative to the root directory,
+		 * with '/' separators, or null if the entry is not to be extracted.
+		 */
+		public String getPath(ZipEntry entry);
+	}
+
+	/**
+	 * The counts of the files processed by an extraction.
+	 */
+	public static class Result {
+		final AtomicInteger extracted = new AtomicInteger();
+		final AtomicInteger skipped = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+
+		/**
+		 * Get the number of files written.
+		 * @return the number of files written.
+		 */
+		public int getExtracted() {
+			return extracted.get();
+		}
+
+		/**
+		 * Get the number of files which were already current.
+		 * @return the number of files which were not written
+		 * because they matched their entries.
+		 */
+		public int getSkipped() {
+			return skipped.get();
+		}
+
+		/**
+		 * Get the number of entries which could not be extracted.
+		 * @return the number of entries which could not be extracted.
+		 */
+		public int getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * Get a summary of the counts.
+		 * @return the counts, as a string.
+		 */
+		public String toString() {
+			return extracted.get() + " extracted, " + skipped.get() + " skipped, " + failed.get() + " failed";
+		}
+	}
+
+	/**
+	 * Extract the entries of a zip file into a root directory,
+	 * preserving the directory structure of the zip file. Entries whose
+	 * paths would place them outside the root directory are not extracted.
+	 * This method returns when all the entries have been processed.
+	 * @param zip the zip file.
+	 * @param root the directory into which to extract the entries.
+	 * @param filter the filter which selects and names the entries,
+	 * or null if all the entries are to be extracted with their own names.
+	 * @return the counts of the files processed.
+	 * @throws IOException if the zip file cannot be opened.
+	 */
+	public static Result extract(File zip, File root, EntryFilter filter) throws IOException {
+		final Result result = new Result();
+		final ZipFile zipFile = new ZipFile(zip);
+		LinkedList<Future<Boolean>> tasks = new LinkedList<Future<Boolean>>();
+		try {
+			String rootPath = root.getCanonicalPath() + File.separator;
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				final ZipEntry entry = entries.nextElement();
+				String path = (filter != null) ? filter.getPath(entry) : entry.getName();
+				if (path == null) continue;
+				final File file = new File(root, path.replace('/', File.separatorChar));
+				if (!file.getCanonicalPath().startsWith(rootPath)) {
+					logger.warn("Entry outside the root directory not extracted: "+entry.getName());
+					result.failed.incrementAndGet();
+					continue;
+				}
+				if (entry.isDirectory()) {
+					mkdirs(file);
+					continue;
+				}
+				//Directories are created here, on one thread,
+				//so the tasks do not compete to create them.
+				if (!mkdirs(file.getParentFile())) {
+					result.failed.incrementAndGet();
+					continue;
+				}
+				tasks.add(FileUtil.copyExecutor.submit(
+					new Callable<Boolean>() {
+						public Boolean call() {
+							return extract(zipFile, entry, file, result);
+						}
+					}
+				));
+			}
+		}
+		finally {
+			for (Future<Boolean> task : tasks) {
+				try { task.get(); }
+				catch (Exception ex) { result.failed.incrementAndGet(); }
+			}
+			FileUtil.close(zipFile);
+		}
+		return result;
+	}
+
+	//Extract one entry unless the file is already current.
+	private static boolean extract(ZipFile zipFile, ZipEntry entry, File file, Result result) {
+		long time = entry.getTime();
+		if (isCurrent(file, entry)) {
+			if ((time != -1) && (file.lastModified() != time)) file.setLastModified(time);
+			result.skipped.incrementAndGet();
+			return true;
+		}
+		try {
+			InputStream in = zipFile.getInputStream(entry);
+			if (FileUtil.copy(in, new FileOutputStream(file), -1)) {
+				if (time != -1) file.setLastModified(time);
+				result.extracted.incrementAndGet();
+				return true;
+			}
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to extract "+entry.getName(), ex);
+		}
+		file.delete();
+		result.failed.incrementAndGet();
+		return false;
+	}
+
+	//Determine whether a file has the size and CRC of an entry.
+	//The time alone is not trusted, because reproducible builds
+	//give every entry of a jar the same time.
+	private static boolean isCurrent(File file, ZipEntry entry) {
+		long size = entry.getSize();
+		long crc = entry.getCrc();
+		if ((size == -1) || (crc == -1) || !file.isFile() || (file.length() != size)) return false;
+		FileChannel channel = null;
+		ByteBuffer buffer = BufferPool.getDirectBuffer();
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			CRC32 crc32 = new CRC32();
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				crc32.update(buffer);
+				buffer.clear();
+			}
+			return (crc32.getValue() == crc);
+		}
+		catch (Exception ex) { return false; }
+		finally {
+			BufferPool.releaseDirectBuffer(buffer);
+			FileUtil.close(channel);
+		}
+	}
+
+	private static boolean mkdirs(File dir) {
+		return dir.mkdirs() || dir.isDirectory();
+	}
+}